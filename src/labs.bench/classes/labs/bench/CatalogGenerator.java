@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2023 bhagc
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.bench;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.MessageFormat;
+import java.time.LocalDate;
+import java.util.SplittableRandom;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.IntStream;
+
+/**
+ * Writes a synthetic catalog in the data layouts read by {@code labs.file}.
+ * <br>
+ * Products get ids {@code 1..products}, every other one is a Food. Prices,
+ * best before dates and review ratings are random but the same for the same
+ * id and seed, so generated catalogs are reproducible. The {@code csv}
+ * layout writes {@code product{id}.csv}/{@code reviews{id}.csv} files, the
+ * {@code segment} layout one {@code segment0.log} file.
+ * <br>
+ * Run with {@code java -p <modules> -m labs.bench/labs.bench.CatalogGenerator
+ * <folder> <products> [reviews per product] [csv|segment]}.
+ *
+ * @author bhagc
+ */
+public class CatalogGenerator {
+
+    private static final long SEED = 20230101L;
+    private static final LocalDate TODAY = LocalDate.of(2023, 1, 1);
+    private static final String[] COMMENTS = {"Nice hot cup of tea",
+        "Rather weak tea", "Fine tea", "Good tea", "Perfect tea", "Just add some lemon",
+        "Not bad at all", "Yet another review"};
+    private static final Logger logger = Logger.getLogger(CatalogGenerator.class.getName());
+    private final Path folder;
+    private final int products;
+    private final int reviews;
+
+    public CatalogGenerator(Path folder, int products, int reviews) {
+        this.folder = folder;
+        this.products = products;
+        this.reviews = reviews;
+    }
+
+    public static void main(String[] args) throws IOException {
+        CatalogGenerator generator = new CatalogGenerator(Path.of(args[0]),
+                Integer.parseInt(args[1]), args.length > 2 ? Integer.parseInt(args[2]) : 5);
+        long start = System.nanoTime();
+        if (args.length > 3 && args[3].equals("segment")) {
+            generator.writeSegments();
+        } else {
+            generator.writeCsv();
+        }
+        logger.log(Level.INFO, "Generated {0} products in {1} s", new Object[]{args[1],
+            String.format("%.3f", (System.nanoTime() - start) / 1e9)});
+    }
+
+    /**
+     * Writes one product file and one reviews file per product, files are
+     * written in parallel
+     */
+    public void writeCsv() throws IOException {
+        Files.createDirectories(folder);
+        try {
+            IntStream.rangeClosed(1, products).parallel().forEach(id -> {
+                try {
+                    Files.writeString(folder.resolve(MessageFormat.format("product{0}.csv", id)),
+                            product(id), StandardCharsets.UTF_8);
+                    if (reviews > 0) {
+                        StringBuilder text = new StringBuilder();
+                        SplittableRandom random = random(id);
+                        for (int i = 0; i < reviews; i++) {
+                            text.append(review(random)).append('\n');
+                        }
+                        Files.writeString(folder.resolve(MessageFormat.format("reviews{0}.csv", id)),
+                                text, StandardCharsets.UTF_8);
+                    }
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+            });
+        } catch (UncheckedIOException ex) {
+            throw ex.getCause();
+        }
+    }
+
+    /**
+     * Writes all products followed by their reviews to one segment file
+     */
+    public void writeSegments() throws IOException {
+        Files.createDirectories(folder);
+        try (BufferedWriter out = Files.newBufferedWriter(folder.resolve("segment0.log"),
+                StandardCharsets.UTF_8)) {
+            for (int id = 1; id <= products; id++) {
+                out.append("P,").append(product(id)).append('\n');
+            }
+            for (int id = 1; id <= products; id++) {
+                SplittableRandom random = random(id);
+                for (int i = 0; i < reviews; i++) {
+                    out.append("R,").append(String.valueOf(id)).append(',')
+                            .append(review(random)).append('\n');
+                }
+            }
+        }
+    }
+
+    private static String product(int id) {
+        SplittableRandom random = random(-id);
+        BigDecimal price = BigDecimal.valueOf(random.nextInt(99, 10_000), 2);
+        LocalDate bestBefore = TODAY.plusDays(random.nextInt(1, 365));
+        return (id % 2 == 0 ? "F," : "D,") + id + ",Product " + id + "," + price + ",0,"
+                + (id % 2 == 0 ? bestBefore : TODAY);
+    }
+
+    private static String review(SplittableRandom random) {
+        return random.nextInt(1, 6) + "," + COMMENTS[random.nextInt(COMMENTS.length)];
+    }
+
+    private static SplittableRandom random(int id) {
+        return new SplittableRandom(SEED * 31 + id);
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2023 bhagc
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.bench;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ServiceLoader;
+import labs.pm.service.ProductManager;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Catalog shared by all benchmark threads, a {@link ProductManager} provider
+ * loaded through {@link ServiceLoader} over a generated catalog.
+ * <br>
+ * Catalogs are generated by {@link CatalogGenerator} once per provider and
+ * size into {@code bench.folder}, by default {@code labs-bench} in the
+ * temporary folder, and reused by later runs. Reviews added by the
+ * benchmarks are stored too, delete the folder to start over.
+ *
+ * @author bhagc
+ */
+@State(Scope.Benchmark)
+public class CatalogState {
+
+    private static final int REVIEWS_PER_PRODUCT = 5;
+
+    @Param({"1000", "10000", "100000", "1000000"})
+    public int size;
+
+    @Param({"ProductFileManager", "ProductSegmentManager"})
+    public String provider;
+
+    ProductManager pm;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        Path folder = Path.of(System.getProperty("bench.folder",
+                Path.of(System.getProperty("java.io.tmpdir"), "labs-bench").toString()))
+                .resolve(provider + "-" + size);
+        Path complete = folder.resolve("complete");
+        if (Files.notExists(complete)) {
+            if (provider.equals("ProductSegmentManager")) {
+                new CatalogGenerator(folder.resolve("segments"), size, REVIEWS_PER_PRODUCT)
+                        .writeSegments();
+            } else {
+                new CatalogGenerator(folder.resolve("data"), size, REVIEWS_PER_PRODUCT)
+                        .writeCsv();
+            }
+            Files.createFile(complete);
+        }
+        System.setProperty("labs.file.data.folder", folder.resolve("data").toString());
+        System.setProperty("labs.file.segment.folder", folder.resolve("segments").toString());
+        System.setProperty("labs.file.snapshot.interval", "0");
+        pm = ServiceLoader.load(ProductManager.class).stream()
+                .filter(p -> p.type().getSimpleName().equals(provider))
+                .findFirst()
+                .orElseThrow(() -> new IllegalStateException("No provider " + provider))
+                .get();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        if (pm instanceof AutoCloseable closeable) {
+            closeable.close();
+        }
+    }
+}
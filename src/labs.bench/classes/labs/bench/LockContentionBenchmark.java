@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2023 bhagc
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.bench;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.ServiceLoader;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import labs.pm.data.Product;
+import labs.pm.data.Rating;
+import labs.pm.service.ProductManager;
+import labs.pm.service.ProductManagerException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Reviews and lookups of {@code ProductFileManager} with its changes
+ * serialized by 64 striped locks against one lock, set with the
+ * {@code labs.file.lock.stripes} system property.
+ * <br>
+ * Four writer threads review random products while four reader threads look
+ * products up, JMH reports the throughput of both. Run with {@code -bm sample}
+ * for the latency percentiles of the lookups. Contention only shows with as
+ * many cores as threads. Lookups take no lock with either setting, to
+ * compare with the read/write lock the manager had before its locks were
+ * striped run the benchmark on a checkout of that commit.
+ *
+ * @author bhagc
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LockContentionBenchmark {
+
+    /**
+     * Catalog of new products in a temporary folder
+     */
+    @State(Scope.Benchmark)
+    public static class Catalog {
+
+        @Param({"1000"})
+        public int size;
+
+        @Param({"64", "1"})
+        public int stripes;
+
+        ProductManager pm;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException, ProductManagerException {
+            Path folder = Files.createTempDirectory("labs-contention");
+            System.setProperty("labs.file.data.folder", folder.toString());
+            System.setProperty("labs.file.snapshot.interval", "0");
+            System.setProperty("labs.file.lock.stripes", String.valueOf(stripes));
+            pm = ServiceLoader.load(ProductManager.class).stream()
+                    .filter(p -> p.type().getSimpleName().equals("ProductFileManager"))
+                    .findFirst()
+                    .orElseThrow(() -> new IllegalStateException("No provider ProductFileManager"))
+                    .get();
+            for (int id = 1; id <= size; id++) {
+                pm.createProduct(id, "Product" + id, BigDecimal.valueOf(1.99), Rating.NO_STAR,
+                        LocalDate.now());
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Exception {
+            if (pm instanceof AutoCloseable closeable) {
+                closeable.close();
+            }
+        }
+    }
+
+    @Benchmark
+    @Group("contention")
+    @GroupThreads(4)
+    public Product review(Catalog catalog) throws ProductManagerException {
+        return catalog.pm.reviewProduct(randomId(catalog),
+                Rating.values()[ThreadLocalRandom.current().nextInt(1, 6)], "Benchmark review");
+    }
+
+    @Benchmark
+    @Group("contention")
+    @GroupThreads(4)
+    public Product lookup(Catalog catalog) throws ProductManagerException {
+        return catalog.pm.findProduct(randomId(catalog));
+    }
+
+    private static int randomId(Catalog catalog) {
+        return ThreadLocalRandom.current().nextInt(catalog.size) + 1;
+    }
+}
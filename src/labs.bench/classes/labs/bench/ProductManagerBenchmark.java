@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2023 bhagc
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.bench;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import labs.pm.data.Food;
+import labs.pm.data.Product;
+import labs.pm.data.Rating;
+import labs.pm.data.Review;
+import labs.pm.service.ProductManagerException;
+import labs.pm.service.ProductPage;
+import labs.pm.service.ProductSort;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of the {@code ProductManager} operations for every provider and
+ * catalog size of {@link CatalogState}.
+ * <br>
+ * Products are picked at random, the filters of {@code findProducts} are the
+ * common queries: four stars and above, a price range and Food expiring
+ * within a month, each also run through the matching index backed query.
+ * {@code listProductsByPrice} selects the first page of the most expensive
+ * products.
+ * Run single threaded by default, pass {@code -t N} to JMH to run with N
+ * threads.
+ *
+ * @author bhagc
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g"})
+public class ProductManagerBenchmark {
+
+    private static final BigDecimal MIN_PRICE = BigDecimal.valueOf(10);
+    private static final BigDecimal MAX_PRICE = BigDecimal.valueOf(20);
+    private static final LocalDate EXPIRY = LocalDate.of(2023, 2, 1);
+    private static final ProductSort MOST_EXPENSIVE = ProductSort.parse("-price");
+
+    @Benchmark
+    public Product findProduct(CatalogState catalog) throws ProductManagerException {
+        return catalog.pm.findProduct(randomId(catalog));
+    }
+
+    @Benchmark
+    public List<Product> findProductsFourStars(CatalogState catalog) throws ProductManagerException {
+        return catalog.pm.findProducts(p -> p.getRating().compareTo(Rating.FOUR_STAR) >= 0);
+    }
+
+    @Benchmark
+    public List<Product> findProductsPriceRange(CatalogState catalog) throws ProductManagerException {
+        return catalog.pm.findProducts(p -> p.getPrice().compareTo(MIN_PRICE) >= 0
+                && p.getPrice().compareTo(MAX_PRICE) < 0);
+    }
+
+    @Benchmark
+    public List<Product> findProductsExpiring(CatalogState catalog) throws ProductManagerException {
+        return catalog.pm.findProducts(p -> p instanceof Food
+                && p.getBestBefore().isBefore(EXPIRY));
+    }
+
+    @Benchmark
+    public List<Product> findProductsRatedAtLeast(CatalogState catalog) throws ProductManagerException {
+        return catalog.pm.findProductsRatedAtLeast(Rating.FOUR_STAR);
+    }
+
+    @Benchmark
+    public List<Product> findProductsByPrice(CatalogState catalog) throws ProductManagerException {
+        return catalog.pm.findProductsByPrice(MIN_PRICE, MAX_PRICE);
+    }
+
+    @Benchmark
+    public List<Product> findProductsBestBefore(CatalogState catalog) throws ProductManagerException {
+        return catalog.pm.findProductsBestBefore(EXPIRY);
+    }
+
+    @Benchmark
+    public ProductPage listProductsByPrice(CatalogState catalog) throws ProductManagerException {
+        return catalog.pm.listProducts(MOST_EXPENSIVE, 20, null);
+    }
+
+    @Benchmark
+    public Product reviewProduct(CatalogState catalog) throws ProductManagerException {
+        return catalog.pm.reviewProduct(randomId(catalog),
+                Rating.values()[ThreadLocalRandom.current().nextInt(1, 6)], "Benchmark review");
+    }
+
+    @Benchmark
+    public List<Review> findReviews(CatalogState catalog) throws ProductManagerException {
+        return catalog.pm.findReviews(randomId(catalog));
+    }
+
+    @Benchmark
+    public Map<Rating, BigDecimal> getDiscounts(CatalogState catalog) throws ProductManagerException {
+        return catalog.pm.getDiscounts();
+    }
+
+    private static int randomId(CatalogState catalog) {
+        return ThreadLocalRandom.current().nextInt(catalog.size) + 1;
+    }
+}
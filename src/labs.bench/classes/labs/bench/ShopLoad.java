@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2023 bhagc
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.bench;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Closed loop load of the {@code labs.client.Shop} HTTP front end.
+ * <br>
+ * Each client thread sends a request, waits for the response and sends the
+ * next one, to a random product id or, one request in ten, to the first
+ * page of the most expensive products. Reports throughput and the latency
+ * percentiles of successful responses, so runs with different
+ * {@code labs.client.server.threads} settings can be compared.
+ * <br>
+ * Run with {@code java -p <modules> -m labs.bench/labs.bench.ShopLoad
+ * <base url> <products> [clients] [seconds]}.
+ *
+ * @author bhagc
+ */
+public class ShopLoad {
+
+    private static final Logger logger = Logger.getLogger(ShopLoad.class.getName());
+
+    public static void main(String[] args) throws InterruptedException {
+        String base = args[0];
+        int products = Integer.parseInt(args[1]);
+        int clients = args.length > 2 ? Integer.parseInt(args[2]) : 256;
+        long seconds = args.length > 3 ? Long.parseLong(args[3]) : 30;
+        HttpClient http = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(10)).build();
+        long end = System.nanoTime() + Duration.ofSeconds(seconds).toNanos();
+        AtomicLong errors = new AtomicLong();
+        List<long[]> latencies = new ArrayList<>(clients);
+        List<Thread> threads = new ArrayList<>(clients);
+        for (int i = 0; i < clients; i++) {
+            long[][] recorded = {new long[1024]};
+            int[] count = {0};
+            Thread thread = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                while (System.nanoTime() < end) {
+                    String path = random.nextInt(10) == 0 ? "/products?sort=-price&limit=20"
+                            : "/" + (random.nextInt(products) + 1);
+                    HttpRequest request = HttpRequest.newBuilder(URI.create(base + path)).build();
+                    long start = System.nanoTime();
+                    try {
+                        HttpResponse<Void> response = http.send(request, HttpResponse.BodyHandlers.discarding());
+                        if (response.statusCode() != 200) {
+                            errors.incrementAndGet();
+                            continue;
+                        }
+                    } catch (IOException ex) {
+                        errors.incrementAndGet();
+                        continue;
+                    } catch (InterruptedException ex) {
+                        return;
+                    }
+                    if (count[0] == recorded[0].length) {
+                        recorded[0] = Arrays.copyOf(recorded[0], count[0] * 2);
+                    }
+                    recorded[0][count[0]++] = System.nanoTime() - start;
+                }
+                synchronized (latencies) {
+                    latencies.add(Arrays.copyOf(recorded[0], count[0]));
+                }
+            }, "shop-load-" + i);
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long[] all = latencies.stream().flatMapToLong(Arrays::stream).sorted().toArray();
+        logger.log(Level.INFO, "{0} clients: {1} req/s, p50 {2} ms, p99 {3} ms, p99.9 {4} ms, {5} errors",
+                new Object[]{clients, String.format("%.0f", all.length / (double) seconds),
+                    percentile(all, 0.50), percentile(all, 0.99), percentile(all, 0.999), errors.get()});
+    }
+
+    private static String percentile(long[] sorted, double fraction) {
+        if (sorted.length == 0) {
+            return "-";
+        }
+        int index = (int) Math.min(sorted.length - 1, Math.ceil(fraction * sorted.length) - 1);
+        return String.format("%.2f", sorted[Math.max(0, index)] / 1e6);
+    }
+}
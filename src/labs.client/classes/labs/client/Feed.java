@@ -0,0 +1,274 @@
+/*
+ * Copyright (C) 2023 bhagc
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.client;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+import labs.pm.data.Rating;
+import labs.pm.service.ImportSummary;
+import labs.pm.service.ProductManagerException;
+
+/**
+ * Reads a feed of records, one per line, and applies them in bulk.
+ * <br>
+ * A feed is CSV or NDJSON of flat objects. Lines are read in chunks of
+ * {@code chunkSize}, each chunk is parsed and validated in parallel and then
+ * applied, so memory stays bounded for any feed size and the input is read
+ * only as fast as the records are applied. Lines that cannot be parsed are
+ * counted as rejected.
+ *
+ * @author bhagc
+ * @param <T> type of the records
+ */
+abstract class Feed<T> {
+
+    /**
+     * Layouts of a feed
+     */
+    enum Format {
+        CSV, NDJSON;
+
+        /**
+         * @param contentType content type of the request or null
+         * @return NDJSON for {@code application/x-ndjson} or
+         * {@code application/json}, CSV otherwise
+         */
+        static Format of(String contentType) {
+            return contentType != null && contentType.contains("json") ? NDJSON : CSV;
+        }
+    }
+
+    /**
+     * Result of a line that is not valid
+     */
+    private record Rejected(String message) {
+
+    }
+
+    private static final Rating[] RATINGS = Rating.values();
+    private final int chunkSize;
+
+    Feed(int chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Reads a whole feed, blocking on the input
+     *
+     * @param in feed in UTF-8
+     * @param format layout of the feed
+     * @return numbers of applied, duplicate and rejected records
+     */
+    ImportSummary importFrom(InputStream in, Format format) throws IOException, ProductManagerException {
+        ImportSummary summary = ImportSummary.EMPTY;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+            List<String> chunk = new ArrayList<>(chunkSize);
+            long first = 1;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                chunk.add(line);
+                if (chunk.size() == chunkSize) {
+                    summary = summary.add(importChunk(chunk, first, format));
+                    first += chunk.size();
+                    chunk.clear();
+                }
+            }
+            if (!chunk.isEmpty()) {
+                summary = summary.add(importChunk(chunk, first, format));
+            }
+        }
+        return summary;
+    }
+
+    /**
+     * @param line CSV line
+     * @return record of the line
+     * @throws RuntimeException if the line is not valid
+     */
+    abstract T parseCsv(String line);
+
+    /**
+     * @param fields fields of an NDJSON line, without null fields
+     * @return record of the line
+     * @throws RuntimeException if the line is not valid
+     */
+    abstract T parseJson(Map<String, String> fields);
+
+    /**
+     * @param records valid records of a chunk
+     * @return numbers of applied, duplicate and rejected records
+     */
+    abstract ImportSummary apply(List<T> records) throws ProductManagerException;
+
+    @SuppressWarnings("unchecked")
+    private ImportSummary importChunk(List<String> lines, long first, Format format) throws ProductManagerException {
+        Object[] parsed = new Object[lines.size()];
+        IntStream.range(0, parsed.length).parallel().forEach(i -> {
+            String line = lines.get(i);
+            if (line.isBlank()) {
+                return;
+            }
+            try {
+                parsed[i] = format == Format.CSV ? parseCsv(line) : parseJson(parseObject(line));
+            } catch (RuntimeException ex) {
+                parsed[i] = new Rejected("Line " + (first + i) + ": " + ex.getMessage());
+            }
+        });
+        List<T> records = new ArrayList<>(parsed.length);
+        List<String> errors = new ArrayList<>();
+        for (Object result : parsed) {
+            if (result instanceof Rejected rejected) {
+                errors.add(rejected.message());
+            } else if (result != null) {
+                records.add((T) result);
+            }
+        }
+        return new ImportSummary(0, 0, errors.size(), errors).add(apply(records));
+    }
+
+    static Rating rating(String stars) {
+        int value = Integer.parseInt(stars.trim());
+        if (value < 0 || value >= RATINGS.length) {
+            throw new IllegalArgumentException("Invalid rating " + stars);
+        }
+        return RATINGS[value];
+    }
+
+    static String required(Map<String, String> fields, String name) {
+        String value = fields.get(name);
+        if (value == null) {
+            throw new IllegalArgumentException("Missing " + name);
+        }
+        return value;
+    }
+
+    /**
+     * Parses a flat JSON object of string, number and null values
+     *
+     * @return field values as text, without the fields set to null
+     */
+    static Map<String, String> parseObject(String text) {
+        Map<String, String> fields = new HashMap<>();
+        int[] pos = {skip(text, 0)};
+        expect(text, pos, '{');
+        if (peek(text, pos) == '}') {
+            pos[0]++;
+        } else {
+            while (true) {
+                String name = string(text, pos);
+                expect(text, pos, ':');
+                String value = peek(text, pos) == '"' ? string(text, pos) : literal(text, pos);
+                if (value != null) {
+                    fields.put(name, value);
+                }
+                char next = peek(text, pos);
+                pos[0]++;
+                if (next == '}') {
+                    break;
+                } else if (next != ',') {
+                    throw new IllegalArgumentException("Expected , or } at " + (pos[0] - 1));
+                }
+            }
+        }
+        if (skip(text, pos[0]) != text.length()) {
+            throw new IllegalArgumentException("Unexpected text after object");
+        }
+        return fields;
+    }
+
+    private static String string(String text, int[] pos) {
+        expect(text, pos, '"');
+        StringBuilder value = new StringBuilder();
+        for (int i = pos[0]; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '"') {
+                pos[0] = i + 1;
+                return value.toString();
+            } else if (c == '\\' && i + 1 < text.length()) {
+                char escaped = text.charAt(++i);
+                switch (escaped) {
+                    case 'n' ->
+                        value.append('\n');
+                    case 't' ->
+                        value.append('\t');
+                    case 'r' ->
+                        value.append('\r');
+                    case 'b' ->
+                        value.append('\b');
+                    case 'f' ->
+                        value.append('\f');
+                    case 'u' -> {
+                        if (i + 4 >= text.length()) {
+                            throw new IllegalArgumentException("Invalid escape at " + i);
+                        }
+                        value.append((char) Integer.parseInt(text.substring(i + 1, i + 5), 16));
+                        i += 4;
+                    }
+                    default ->
+                        value.append(escaped);
+                }
+            } else {
+                value.append(c);
+            }
+        }
+        throw new IllegalArgumentException("Unterminated string");
+    }
+
+    private static String literal(String text, int[] pos) {
+        int start = pos[0];
+        int end = start;
+        while (end < text.length() && ",}".indexOf(text.charAt(end)) < 0 && !Character.isWhitespace(text.charAt(end))) {
+            end++;
+        }
+        pos[0] = end;
+        String value = text.substring(start, end);
+        if (value.isEmpty()) {
+            throw new IllegalArgumentException("Missing value at " + start);
+        }
+        return value.equals("null") ? null : value;
+    }
+
+    private static void expect(String text, int[] pos, char c) {
+        if (peek(text, pos) != c) {
+            throw new IllegalArgumentException("Expected " + c + " at " + pos[0]);
+        }
+        pos[0]++;
+    }
+
+    private static char peek(String text, int[] pos) {
+        pos[0] = skip(text, pos[0]);
+        if (pos[0] >= text.length()) {
+            throw new IllegalArgumentException("Unexpected end of line");
+        }
+        return text.charAt(pos[0]);
+    }
+
+    private static int skip(String text, int pos) {
+        while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) {
+            pos++;
+        }
+        return pos;
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2023 bhagc
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.client;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.Map;
+import labs.pm.service.ImportSummary;
+import labs.pm.service.ProductManager;
+import labs.pm.service.ProductManagerException;
+import labs.pm.service.ProductSpec;
+
+/**
+ * Supplier feed of products created by
+ * {@link ProductManager#createProducts}.
+ * <br>
+ * CSV lines have the layout of the product files,
+ * {@code F,101,Cake,2.99,4,2023-10-10} for a Food and {@code D,102,Tea,1.99,0}
+ * for a Drink. NDJSON lines have the fields {@code id}, {@code name},
+ * {@code price}, {@code rating} and, for a Food, {@code bestBefore}.
+ *
+ * @author bhagc
+ */
+class ProductFeed extends Feed<ProductSpec> {
+
+    private final ProductManager pm;
+
+    ProductFeed(ProductManager pm, int chunkSize) {
+        super(chunkSize);
+        this.pm = pm;
+    }
+
+    @Override
+    ProductSpec parseCsv(String line) {
+        String[] values = line.split(",", -1);
+        if (values.length < 5) {
+            throw new IllegalArgumentException("Expected type,id,name,price,rating[,bestBefore]");
+        }
+        LocalDate bestBefore = switch (values[0].trim()) {
+            case "F" -> {
+                if (values.length < 6) {
+                    throw new IllegalArgumentException("Missing best before date of a Food");
+                }
+                yield LocalDate.parse(values[5].trim());
+            }
+            case "D" ->
+                null;
+            default ->
+                throw new IllegalArgumentException("Unknown product type " + values[0]);
+        };
+        return new ProductSpec(Integer.parseInt(values[1].trim()), values[2],
+                new BigDecimal(values[3].trim()), rating(values[4]), bestBefore);
+    }
+
+    @Override
+    ProductSpec parseJson(Map<String, String> fields) {
+        String bestBefore = fields.get("bestBefore");
+        return new ProductSpec(Integer.parseInt(required(fields, "id")), fields.get("name"),
+                new BigDecimal(required(fields, "price")), rating(fields.getOrDefault("rating", "0")),
+                bestBefore == null ? null : LocalDate.parse(bestBefore));
+    }
+
+    @Override
+    ImportSummary apply(List<ProductSpec> records) throws ProductManagerException {
+        return pm.createProducts(records.stream());
+    }
+}
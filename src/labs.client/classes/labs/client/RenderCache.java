@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2023 bhagc
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.client;
+
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import labs.pm.data.Product;
+
+/**
+ * Size bounded cache of rendered product bodies.
+ * <br>
+ * Bodies are keyed by product id, version and language, so a new version of a
+ * product is rendered again and the old entries age out as the least recently
+ * used. The entity tag also holds the best before date, which for a Drink is
+ * the current day, so such bodies are rendered again on the next day.
+ *
+ * @author bhagc
+ */
+class RenderCache {
+
+    /**
+     * @param id product id
+     * @param version product version
+     * @param languageTag language the body is rendered in
+     */
+    record Key(int id, long version, String languageTag) {
+
+        static Key of(Product product, String languageTag) {
+            return new Key(product.getId(), product.getVersion(), languageTag);
+        }
+
+        /**
+         * @return strong entity tag of the body rendered for this key
+         */
+        String etag(Product product) {
+            return "\"" + id + "-" + version + "-" + languageTag + "-"
+                    + product.getBestBefore().toEpochDay() + "\"";
+        }
+    }
+
+    /**
+     * @param body rendered body
+     * @param etag entity tag of the body
+     * @param lastModified first time this version was rendered, as an HTTP date
+     */
+    record Entry(String body, String etag, String lastModified) {
+
+    }
+
+    private final int capacity;
+    private final Map<Key, Entry> entries;
+    private long hits;
+    private long misses;
+
+    RenderCache(int capacity) {
+        this.capacity = capacity;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+                return size() > RenderCache.this.capacity;
+            }
+        };
+    }
+
+    /**
+     * @param key product id, version and language
+     * @param etag current entity tag of the product
+     * @return cached entry or null when not cached or rendered for another day
+     */
+    synchronized Entry get(Key key, String etag) {
+        Entry entry = entries.get(key);
+        if (entry == null || !entry.etag().equals(etag)) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry;
+    }
+
+    /**
+     * @return entry of a newly rendered body
+     */
+    synchronized Entry put(Key key, String etag, String body) {
+        Entry entry = new Entry(body, etag, DateTimeFormatter.RFC_1123_DATE_TIME
+                .format(Instant.now().truncatedTo(ChronoUnit.SECONDS).atOffset(ZoneOffset.UTC)));
+        entries.put(key, entry);
+        return entry;
+    }
+
+    synchronized long getHits() {
+        return hits;
+    }
+
+    synchronized long getMisses() {
+        return misses;
+    }
+}
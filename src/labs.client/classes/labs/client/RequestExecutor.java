@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2023 bhagc
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.client;
+
+import io.helidon.common.http.Http;
+import io.helidon.webserver.ServerResponse;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import labs.pm.service.ProductManagerException;
+
+/**
+ * Runs the blocking {@code ProductManager} calls of request handlers off the
+ * webserver event loop and sends their results asynchronously.
+ * <br>
+ * The thread model is chosen by {@code server.threads}:
+ * <ul>
+ * <li>{@code event-loop} calls the provider on the event loop thread, as
+ * before, kept to compare against, bulk imports are refused</li>
+ * <li>{@code bounded} uses {@code server.workers} worker threads and a queue
+ * of {@code server.queue.size} requests, requests beyond it are answered
+ * with 503 at once</li>
+ * <li>{@code virtual} starts a virtual thread per request on a Java runtime
+ * that has them and falls back to {@code bounded} otherwise</li>
+ * </ul>
+ *
+ * @author bhagc
+ */
+class RequestExecutor {
+
+    private static final Logger logger = Logger.getLogger(RequestExecutor.class.getName());
+
+    /**
+     * Threads the blocking calls run on
+     */
+    enum ThreadModel {
+        EVENT_LOOP, BOUNDED, VIRTUAL
+    }
+
+    /**
+     * Blocking call producing the body of a response, null for a response
+     * without body
+     */
+    @FunctionalInterface
+    interface Call {
+
+        String call() throws ProductManagerException;
+    }
+
+    private final ThreadModel model;
+    private final ExecutorService executor;
+
+    RequestExecutor(ThreadModel model, int workers, int queueSize) {
+        ExecutorService virtual = model == ThreadModel.VIRTUAL ? virtualThreads() : null;
+        if (model == ThreadModel.VIRTUAL && virtual == null) {
+            logger.log(Level.WARNING, "Virtual threads are not available, using {0} bounded workers", workers);
+            model = ThreadModel.BOUNDED;
+        }
+        this.model = model;
+        this.executor = switch (model) {
+            case EVENT_LOOP ->
+                null;
+            case VIRTUAL ->
+                virtual;
+            case BOUNDED ->
+                boundedWorkers(workers, queueSize);
+        };
+    }
+
+    ThreadModel getModel() {
+        return model;
+    }
+
+    /**
+     * Runs a call and sends its result, 400 for an invalid argument, 404 for
+     * a product that is not found, 503 when the workers are saturated or the
+     * call is rejected and 500 for any other failure.
+     *
+     * @param response response to send
+     * @param call blocking call producing the body
+     */
+    void respond(ServerResponse response, Call call) {
+        if (executor == null) {
+            try {
+                send(response, run(call), null);
+            } catch (RuntimeException ex) {
+                send(response, null, ex);
+            }
+            return;
+        }
+        try {
+            CompletableFuture.supplyAsync(() -> run(call), executor)
+                    .whenComplete((body, ex) -> send(response, body, ex));
+        } catch (RejectedExecutionException ex) {
+            response.status(Http.Status.SERVICE_UNAVAILABLE_503).send("Server busy, retry later");
+        }
+    }
+
+    void shutdown() {
+        if (executor != null) {
+            executor.shutdown();
+        }
+    }
+
+    private static String run(Call call) {
+        try {
+            return call.call();
+        } catch (ProductManagerException ex) {
+            throw new CompletionException(ex);
+        }
+    }
+
+    private static void send(ServerResponse response, String body, Throwable ex) {
+        if (ex instanceof CompletionException && ex.getCause() != null) {
+            ex = ex.getCause();
+        }
+        if (ex == null && body == null) {
+            response.send();
+        } else if (ex == null) {
+            response.send(body);
+        } else if (ex instanceof RejectedExecutionException) {
+            response.status(Http.Status.SERVICE_UNAVAILABLE_503).send("Server busy, retry later");
+        } else if (ex instanceof IllegalArgumentException) {
+            response.status(Http.Status.BAD_REQUEST_400).send(ex.getMessage());
+        } else if (ex instanceof ProductManagerException) {
+            logger.log(Level.INFO, ex.getMessage());
+            response.status(Http.Status.NOT_FOUND_404).send(ex.getMessage());
+        } else {
+            logger.log(Level.SEVERE, "Request failed", ex);
+            response.status(Http.Status.INTERNAL_SERVER_ERROR_500).send("Request failed");
+        }
+    }
+
+    private static ExecutorService boundedWorkers(int workers, int queueSize) {
+        AtomicInteger count = new AtomicInteger();
+        return new ThreadPoolExecutor(workers, workers, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueSize), task -> {
+                    Thread thread = new Thread(task, "shop-worker-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }, new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    /**
+     * Looks up {@code Executors.newVirtualThreadPerTaskExecutor}, which does
+     * not exist before Java 21
+     *
+     * @return executor starting a virtual thread per task or null
+     */
+    private static ExecutorService virtualThreads() {
+        try {
+            return (ExecutorService) MethodHandles.publicLookup()
+                    .findStatic(Executors.class, "newVirtualThreadPerTaskExecutor",
+                            MethodType.methodType(ExecutorService.class))
+                    .invoke();
+        } catch (Throwable ex) {
+            return null;
+        }
+    }
+}
@@ -16,17 +16,34 @@
  */
 package labs.client;
 
-import java.text.MessageFormat;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.text.FieldPosition;
 import java.text.NumberFormat;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Queue;
 import java.util.ResourceBundle;
 import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import labs.pm.data.Product;
 import labs.pm.data.Review;
 
 /**
+ * Renders products and reviews for one locale.
+ * <br>
+ * The {@code product} and {@code review} patterns are compiled once into a
+ * {@link Template}, so rendering does not parse them again. The date format
+ * is immutable and shared. Number formats are not thread safe, a rendering
+ * takes a set from a pool of the formatter and puts it back when done, so
+ * the formats are made once per concurrent rendering and not once per
+ * thread, which would be once per request with virtual threads. Rendering
+ * writes straight into a caller supplied
+ * {@link Appendable}, the output is the same as {@code MessageFormat.format}
+ * of the patterns.
  *
  * @author bhagc
  */
@@ -34,14 +51,17 @@ public class ResourceFormatter {
 
     private final Locale locale;
     private final ResourceBundle resource;
-    private final NumberFormat currencyFormat;
+    private final Template productTemplate;
+    private final Template reviewTemplate;
+    private final Queue<Numbers> numbers = new ConcurrentLinkedQueue<>();
     private final DateTimeFormatter dateFormat;
 
 
     private ResourceFormatter(Locale locale) {
         this.locale = locale;
         this.resource = ResourceBundle.getBundle("labs.client.resources");
-        this.currencyFormat = NumberFormat.getCurrencyInstance(this.locale);
+        this.productTemplate = Template.compile(resource.getString("product"));
+        this.reviewTemplate = Template.compile(resource.getString("review"));
         this.dateFormat = DateTimeFormatter.ofPattern("YYYY MM dd", locale);
     }
 
@@ -63,20 +83,203 @@ public class ResourceFormatter {
         return formatters.keySet();
     }
 
+    /**
+     * Picks the first supported language of an {@code Accept-Language} header,
+     * ignoring quality values
+     *
+     * @param acceptLanguage header value, for example {@code fr-FR,fr;q=0.8},
+     * or null
+     * @return supported language tag, {@code en-US} when none is supported
+     */
+    public static String negotiate(String acceptLanguage) {
+        if (acceptLanguage != null) {
+            for (String range : acceptLanguage.split(",")) {
+                int semicolon = range.indexOf(';');
+                String tag = (semicolon < 0 ? range : range.substring(0, semicolon)).trim();
+                for (String supported : formatters.keySet()) {
+                    if (supported.equalsIgnoreCase(tag)) {
+                        return supported;
+                    }
+                }
+            }
+        }
+        return "en-US";
+    }
+
     public String formatProduct(Product product) {
-        return MessageFormat.format(this.resource.getString("product"),
-                product.getId(), product.getName(),
-                currencyFormat.format(product.getPrice()),
-                product.getRating().getStars(),
-                product.getBestBefore().format(dateFormat));
+        StringBuilder text = new StringBuilder(128);
+        try {
+            formatProduct(product, text);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        return text.toString();
+    }
+
+    /**
+     * @param product product to render
+     * @param out destination of the text
+     * @throws IOException if the destination cannot be written
+     */
+    public void formatProduct(Product product, Appendable out) throws IOException {
+        Numbers formats = numbers.poll();
+        if (formats == null) {
+            formats = new Numbers(locale);
+        }
+        try {
+            for (int i = 0; i < productTemplate.size(); i++) {
+                out.append(productTemplate.literal(i));
+                switch (productTemplate.argument(i)) {
+                    case 0 ->
+                        formats.formatNumber(product.getId(), out);
+                    case 1 ->
+                        out.append(product.getName());
+                    case 2 ->
+                        formats.formatCurrency(product.getPrice(), out);
+                    case 3 ->
+                        out.append(product.getRating().getStars());
+                    case 4 ->
+                        dateFormat.formatTo(product.getBestBefore(), out);
+                    default -> {
+                    }
+                }
+            }
+        } finally {
+            numbers.offer(formats);
+        }
     }
 
     public String formatReview(Review review) {
-        return MessageFormat.format(this.resource.getString("review"),
-                review.getRating().getStars(), review.getComments());
+        StringBuilder text = new StringBuilder(64);
+        try {
+            formatReview(review, text);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        return text.toString();
+    }
+
+    /**
+     * @param review review to render
+     * @param out destination of the text
+     * @throws IOException if the destination cannot be written
+     */
+    public void formatReview(Review review, Appendable out) throws IOException {
+        for (int i = 0; i < reviewTemplate.size(); i++) {
+            out.append(reviewTemplate.literal(i));
+            switch (reviewTemplate.argument(i)) {
+                case 0 ->
+                    out.append(review.getRating().getStars());
+                case 1 ->
+                    out.append(review.getComments());
+                default -> {
+                }
+            }
+        }
     }
 
     public String getText(String key) {
         return resource.getString(key);
     }
+
+    /**
+     * {@code MessageFormat} pattern with plain {@code {n}} arguments split into
+     * literal text and argument numbers
+     */
+    static final class Template {
+
+        private final String[] literals;
+        private final int[] arguments;
+
+        private Template(String[] literals, int[] arguments) {
+            this.literals = literals;
+            this.arguments = arguments;
+        }
+
+        /**
+         * @param pattern pattern quoted like a {@code MessageFormat} pattern
+         * @return compiled pattern
+         * @throws IllegalArgumentException if the pattern has an argument with
+         * a format type or is not well formed
+         */
+        static Template compile(String pattern) {
+            List<String> literals = new ArrayList<>();
+            List<Integer> arguments = new ArrayList<>();
+            StringBuilder literal = new StringBuilder();
+            boolean quoted = false;
+            for (int i = 0; i < pattern.length(); i++) {
+                char c = pattern.charAt(i);
+                if (c == '\'') {
+                    if (i + 1 < pattern.length() && pattern.charAt(i + 1) == '\'') {
+                        literal.append('\'');
+                        i++;
+                    } else {
+                        quoted = !quoted;
+                    }
+                } else if (c == '{' && !quoted) {
+                    int end = pattern.indexOf('}', i);
+                    if (end < 0) {
+                        throw new IllegalArgumentException("Unmatched braces in " + pattern);
+                    }
+                    try {
+                        arguments.add(Integer.parseInt(pattern.substring(i + 1, end).trim()));
+                    } catch (NumberFormatException ex) {
+                        throw new IllegalArgumentException("Unsupported argument in " + pattern);
+                    }
+                    literals.add(literal.toString());
+                    literal.setLength(0);
+                    i = end;
+                } else {
+                    literal.append(c);
+                }
+            }
+            literals.add(literal.toString());
+            arguments.add(-1);
+            return new Template(literals.toArray(String[]::new),
+                    arguments.stream().mapToInt(Integer::intValue).toArray());
+        }
+
+        int size() {
+            return literals.length;
+        }
+
+        String literal(int i) {
+            return literals[i];
+        }
+
+        /**
+         * @return argument following the literal or -1 after the last one
+         */
+        int argument(int i) {
+            return arguments[i];
+        }
+    }
+
+    /**
+     * Number formats of one rendering at a time and the buffer they write
+     * into
+     */
+    private static final class Numbers {
+
+        private final NumberFormat currency;
+        private final NumberFormat number;
+        private final StringBuffer buffer = new StringBuffer(32);
+        private final FieldPosition position = new FieldPosition(0);
+
+        Numbers(Locale locale) {
+            currency = NumberFormat.getCurrencyInstance(locale);
+            // MessageFormat.format renders numbers in the default locale
+            number = NumberFormat.getInstance(Locale.getDefault(Locale.Category.FORMAT));
+        }
+
+        void formatCurrency(Object amount, Appendable out) throws IOException {
+            buffer.setLength(0);
+            out.append(currency.format(amount, buffer, position));
+        }
+
+        void formatNumber(long value, Appendable out) throws IOException {
+            buffer.setLength(0);
+            out.append(number.format(value, buffer, position));
+        }
+    }
 }
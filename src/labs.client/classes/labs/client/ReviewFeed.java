@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2023 bhagc
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.client;
+
+import java.util.List;
+import java.util.Map;
+import labs.pm.service.ImportSummary;
+import labs.pm.service.ProductManager;
+import labs.pm.service.ProductManagerException;
+import labs.pm.service.ReviewSpec;
+
+/**
+ * Feed of reviews applied by {@link ProductManager#reviewProducts}.
+ * <br>
+ * CSV lines are {@code id,rating,comments}, the comments may contain commas.
+ * NDJSON lines have the fields {@code id}, {@code rating} and
+ * {@code comments}.
+ *
+ * @author bhagc
+ */
+class ReviewFeed extends Feed<ReviewSpec> {
+
+    private final ProductManager pm;
+
+    ReviewFeed(ProductManager pm, int chunkSize) {
+        super(chunkSize);
+        this.pm = pm;
+    }
+
+    @Override
+    ReviewSpec parseCsv(String line) {
+        String[] values = line.split(",", 3);
+        if (values.length < 2) {
+            throw new IllegalArgumentException("Expected id,rating[,comments]");
+        }
+        return new ReviewSpec(Integer.parseInt(values[0].trim()), rating(values[1]),
+                values.length > 2 ? values[2] : "");
+    }
+
+    @Override
+    ReviewSpec parseJson(Map<String, String> fields) {
+        return new ReviewSpec(Integer.parseInt(required(fields, "id")), rating(required(fields, "rating")),
+                fields.getOrDefault("comments", ""));
+    }
+
+    @Override
+    ImportSummary apply(List<ReviewSpec> records) throws ProductManagerException {
+        return pm.reviewProducts(records.stream());
+    }
+}
@@ -16,16 +16,29 @@
  */
 package labs.client;
 
+import io.helidon.common.http.Http;
 import io.helidon.webserver.Routing;
+import io.helidon.webserver.ServerRequest;
+import io.helidon.webserver.ServerResponse;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.math.BigDecimal;
+import java.util.Enumeration;
+import java.util.Locale;
+import java.util.ResourceBundle;
 import java.util.ServiceLoader;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 //import labs.file.service.ProductFileManager;
 import labs.pm.data.Product;
 import labs.pm.data.Rating;
-import labs.pm.service.ProductManagerException;
+import labs.pm.service.ImportSummary;
 import labs.pm.service.ProductManager;
+import labs.pm.service.ProductPage;
+import labs.pm.service.ProductSort;
 import io.helidon.webserver.ServerConfiguration;
 import io.helidon.webserver.WebServer;
 import java.net.InetAddress;
@@ -38,40 +51,164 @@ import java.net.UnknownHostException;
 public class Shop {
 
    private static final Logger logger=Logger.getLogger(Shop.class.getName());
+   private static final String DEFAULT_PAGE_SIZE="20";
+   private static final int MAX_PAGE_SIZE=100;
     public static void main(String[] args) {
         try {
             ResourceFormatter formatter=ResourceFormatter.getResourceFormatter("fr-FR");
            ServiceLoader<ProductManager> serviceLoader=ServiceLoader.load(ProductManager.class);
             ProductManager pm=serviceLoader.findFirst().get();
+            ResourceBundle settings=loadConfig();
+            int chunkSize=Integer.parseInt(settings.getString("import.chunk.size"));
+            ProductFeed products=new ProductFeed(pm, chunkSize);
+            ReviewFeed reviews=new ReviewFeed(pm, chunkSize);
+            Semaphore ingests=new Semaphore(Integer.parseInt(settings.getString("import.concurrency")));
+            RenderCache renderCache=new RenderCache(Integer.parseInt(settings.getString("render.cache.size")));
+            RequestExecutor executor=new RequestExecutor(
+                    RequestExecutor.ThreadModel.valueOf(settings.getString("server.threads")
+                            .toUpperCase(Locale.ROOT).replace('-', '_')),
+                    Integer.parseInt(settings.getString("server.workers")),
+                    Integer.parseInt(settings.getString("server.queue.size")));
 
      ServerConfiguration config=ServerConfiguration.builder()
              .bindAddress(InetAddress.getLocalHost())
-             .port(8080).build();
+             .port(Integer.parseInt(settings.getString("server.port"))).build();
      
      Routing routing =Routing.builder()
              .any("/",(request,response)->{
              response.send("Enter id in url to find Product");
              })
-             .get("/{id}",(req,res)->{
-                 String result=null;
-                try {
-                    int id=Integer.parseInt(req.path().param("id"));
-                    Product pd=pm.findProduct(id);
-                    result=pd.toString();
-                } catch (ProductManagerException ex) {
-                    logger.log(Level.INFO, ex.getMessage());
-                    result="Product with this id "+req.path().param("id")+" not found";
-                }
-                res.send(result);
-        }).build();
+             .get("/products",(req,res)->executor.respond(res,()->{
+                 ProductSort sort=ProductSort.parse(req.queryParams().first("sort").orElse(null));
+                 int limit=Math.min(MAX_PAGE_SIZE,
+                         Integer.parseInt(req.queryParams().first("limit").orElse(DEFAULT_PAGE_SIZE)));
+                 String after=req.queryParams().first("after").orElse(null);
+                 ProductPage page=pm.listProducts(sort, limit, after);
+                 StringBuilder body=new StringBuilder();
+                 page.getProducts().forEach(p->body.append(p).append('\n'));
+                 if(page.getNext()!=null){
+                     res.headers().put("Link", "</products?sort="+sort+"&limit="+limit
+                             +"&after="+page.getNext()+">; rel=\"next\"");
+                 }
+                 return body.toString();
+             }))
+             .post("/products/bulk",(req,res)->importFeed(req, res, executor, products, ingests))
+             .post("/reviews/bulk",(req,res)->importFeed(req, res, executor, reviews, ingests))
+             .get("/{id}",(req,res)->executor.respond(res,()->{
+                 int id=Integer.parseInt(req.path().param("id"));
+                 Product pd=pm.findProduct(id);
+                 String languageTag=ResourceFormatter.negotiate(
+                         req.headers().value(Http.Header.ACCEPT_LANGUAGE).orElse(null));
+                 RenderCache.Key key=RenderCache.Key.of(pd, languageTag);
+                 String etag=key.etag(pd);
+                 RenderCache.Entry entry=renderCache.get(key, etag);
+                 res.headers().put(Http.Header.ETAG, etag);
+                 res.headers().put("Vary", Http.Header.ACCEPT_LANGUAGE);
+                 if(req.headers().value(Http.Header.IF_NONE_MATCH).filter(tags->matches(tags, etag)).isPresent()){
+                     if(entry!=null){
+                         res.headers().put(Http.Header.LAST_MODIFIED, entry.lastModified());
+                     }
+                     res.status(Http.Status.NOT_MODIFIED_304);
+                     return null;
+                 }
+                 if(entry==null){
+                     entry=renderCache.put(key, etag,
+                             ResourceFormatter.getResourceFormatter(languageTag).formatProduct(pd));
+                 }
+                 res.headers().put(Http.Header.LAST_MODIFIED, entry.lastModified());
+                 return entry.body();
+             })).build();
         
      WebServer server=WebServer.create(config, routing);
      server.start();
+     logger.log(Level.INFO, "Serving requests on {0} threads", executor.getModel());
+     Runtime.getRuntime().addShutdownHook(new Thread(()->{
+         executor.shutdown();
+         if(pm instanceof AutoCloseable closeable){
+             try{
+                 closeable.close();
+             }catch(Exception ex){
+                 logger.log(Level.WARNING, "Error in closing the product manager", ex);
+             }
+         }
+         logger.log(Level.INFO, "Render cache: {0} hits, {1} misses",
+                 new Object[]{renderCache.getHits(), renderCache.getMisses()});
+     }));
                     
         }catch(UnknownHostException ex){
             logger.log(Level.INFO, ex.getMessage());
         }
        
     }
+
+    /**
+     * Imports the feed in the body of a request on a worker thread. The body
+     * is read only as fast as its records are applied and at most
+     * {@code import.concurrency} imports run at once, others get 503. Reading
+     * the body blocks, so with {@code event-loop} threads imports are refused
+     * with 503 rather than stall the event loop.
+     */
+    private static void importFeed(ServerRequest req, ServerResponse res, RequestExecutor executor,
+            Feed<?> feed, Semaphore ingests) {
+        if(executor.getModel()==RequestExecutor.ThreadModel.EVENT_LOOP){
+            res.status(Http.Status.SERVICE_UNAVAILABLE_503)
+                    .send("Bulk imports need server.threads set to bounded or virtual");
+            return;
+        }
+        req.content().as(InputStream.class).thenAccept(in->executor.respond(res,()->{
+            if(!ingests.tryAcquire()){
+                throw new RejectedExecutionException("Too many imports");
+            }
+            try {
+                ImportSummary summary=feed.importFrom(in, Feed.Format.of(
+                        req.headers().value(Http.Header.CONTENT_TYPE).orElse(null)));
+                StringBuilder body=new StringBuilder()
+                        .append("applied=").append(summary.getInserted())
+                        .append("\nduplicates=").append(summary.getDuplicates())
+                        .append("\nrejected=").append(summary.getRejected()).append('\n');
+                summary.getErrors().forEach(error->body.append(error).append('\n'));
+                return body.toString();
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            } finally {
+                ingests.release();
+            }
+        }));
+    }
+
+    /**
+     * @param tags value of an {@code If-None-Match} header
+     * @param etag current entity tag
+     * @return whether the header matches the entity tag
+     */
+    private static boolean matches(String tags, String etag) {
+        for (String tag : tags.split(",")) {
+            tag = tag.trim();
+            if (tag.equals("*") || tag.equals(etag) || tag.equals("W/" + etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Reads {@code labs/client/config.properties}, any setting can be
+     * overridden by a {@code labs.client.<key>} system property
+     */
+    private static ResourceBundle loadConfig() {
+        ResourceBundle config = ResourceBundle.getBundle("labs.client.config");
+        return new ResourceBundle() {
+            @Override
+            protected Object handleGetObject(String key) {
+                String value = System.getProperty("labs.client." + key);
+                return value != null ? value : config.getObject(key);
+            }
+
+            @Override
+            public Enumeration<String> getKeys() {
+                return config.getKeys();
+            }
+        };
+    }
     
 }
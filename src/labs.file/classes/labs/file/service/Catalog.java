@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2023 bhagc
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.file.service;
+
+import java.math.BigDecimal;
+import java.util.Map;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import labs.pm.data.Product;
+import labs.pm.data.Rating;
+import labs.pm.data.RatingSummary;
+import labs.pm.service.CatalogSnapshot;
+import labs.pm.service.ProductManagerException;
+
+/**
+ * Version of the catalog of a {@link ProductFileManager}.
+ * <br>
+ * Products and rating summaries are kept in {@link IntTrie persistent tries}
+ * keyed by product id, so a change makes a new version sharing all but a few
+ * nodes with the previous one. The manager publishes a version by replacing
+ * its reference to it, readers holding an older version keep reading it.
+ * <br>
+ * A catalog loaded from a {@link SnapshotFile} keeps the mapped snapshot as
+ * its base and the tries hold only the products changed or added since, a
+ * product of the base is decoded each time it is looked up.
+ *
+ * @author bhagc
+ */
+final class Catalog implements CatalogSnapshot {
+
+    static final Catalog EMPTY = new Catalog(null, IntTrie.empty(), IntTrie.empty(), 0, Map.of(), 0);
+    private final SnapshotFile.Image base;
+    private final IntTrie<Product> products;
+    private final IntTrie<RatingSummary> ratings;
+    private final int added;
+    private final Map<Rating, BigDecimal> discounts;
+    private final long version;
+
+    Catalog(IntTrie<Product> products, IntTrie<RatingSummary> ratings, Map<Rating, BigDecimal> discounts,
+            long version) {
+        this(null, products, ratings, products.size(), discounts, version);
+    }
+
+    /**
+     * @param base snapshot holding the products not in the tries or null
+     * @param products products changed or added since the snapshot
+     * @param ratings rating summaries of those products
+     * @param added number of those products the snapshot does not hold
+     * @param discounts discounts of all products
+     * @param version version of the catalog
+     */
+    Catalog(SnapshotFile.Image base, IntTrie<Product> products, IntTrie<RatingSummary> ratings, int added,
+            Map<Rating, BigDecimal> discounts, long version) {
+        this.base = base;
+        this.products = products;
+        this.ratings = ratings;
+        this.added = added;
+        this.discounts = discounts;
+        this.version = version;
+    }
+
+    /**
+     * @param product new or changed product
+     * @param summary rating summary of the product
+     * @param discounts discounts including the product
+     * @return next version holding the product
+     */
+    Catalog with(Product product, RatingSummary summary, Map<Rating, BigDecimal> discounts) {
+        return new Catalog(base, products.put(product.getId(), product), ratings.put(product.getId(), summary),
+                contains(product.getId()) ? added : added + 1, discounts, version + 1);
+    }
+
+    /**
+     * @param products changed tries of the next version
+     * @param ratings rating summaries of the next version
+     * @param discounts discounts of the next version
+     * @param created number of new products, each one change
+     * @return next version
+     */
+    Catalog with(IntTrie<Product> products, IntTrie<RatingSummary> ratings, Map<Rating, BigDecimal> discounts,
+            int created) {
+        return new Catalog(base, products, ratings, added + created, discounts, version + created);
+    }
+
+    IntTrie<Product> productTrie() {
+        return products;
+    }
+
+    IntTrie<RatingSummary> ratingTrie() {
+        return ratings;
+    }
+
+    boolean contains(int id) {
+        return products.contains(id) || base != null && base.indexOf(id) >= 0;
+    }
+
+    /**
+     * @return product with an id or null when there is no such product
+     */
+    Product product(int id) {
+        Product product = products.get(id);
+        if (product == null && base != null) {
+            int i = base.indexOf(id);
+            if (i >= 0) {
+                product = base.product(i);
+            }
+        }
+        return product;
+    }
+
+    /**
+     * @return rating summary of a product or null when there is no such
+     * product
+     */
+    RatingSummary summary(int id) {
+        RatingSummary summary = ratings.get(id);
+        if (summary == null && base != null) {
+            int i = base.indexOf(id);
+            if (i >= 0) {
+                summary = base.summary(i);
+            }
+        }
+        return summary;
+    }
+
+    @Override
+    public long getVersion() {
+        return version;
+    }
+
+    @Override
+    public int size() {
+        return base == null ? products.size() : base.size() + added;
+    }
+
+    @Override
+    public Product findProduct(int id) throws ProductManagerException {
+        Product product = product(id);
+        if (product == null) {
+            throw new ProductManagerException("Product with this id: " + id + " is not Found");
+        }
+        return product;
+    }
+
+    @Override
+    public RatingSummary getRatingSummary(int id) throws ProductManagerException {
+        return summary(findProduct(id).getId());
+    }
+
+    @Override
+    public Stream<Product> products() {
+        if (base == null) {
+            return products.values();
+        }
+        return Stream.concat(IntStream.range(0, base.size())
+                .filter(i -> !products.contains(base.id(i)))
+                .mapToObj(base::product), products.values());
+    }
+
+    @Override
+    public Map<Rating, BigDecimal> getDiscounts() {
+        return discounts;
+    }
+}
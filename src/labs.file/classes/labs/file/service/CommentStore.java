@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2023 bhagc
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.file.service;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Review comments of a {@link ReviewCache}, each stored once and referred to
+ * by an int id. A copy of the comment store of the legacy catalog, which is
+ * built as a module of its own.
+ * <br>
+ * Comments are deduplicated on a best-effort basis. A comment being added is
+ * looked up in a small concurrent table of recent comments by hash, a comment
+ * found there, like the canned text most reviews share, gets the id it
+ * already has. The table keeps one comment per hash bucket and a newer
+ * comment replaces an older one, unless the older one was found since it was
+ * last spared. A repeated comment that was pushed out of the table is stored
+ * again under a new id, the table does not hold every comment, which would
+ * keep all of them uncompressed.
+ * <br>
+ * New comments go to a hot block kept as strings. A full block of
+ * {@link #BLOCK_SIZE} comments is deflated outside of the lock of the store
+ * and kept as bytes, and inflated again when a comment of it is read, which
+ * is when reviews are listed or reported. The last inflated blocks are kept,
+ * so reading the reviews of a product does not inflate the same block for
+ * every review.
+ * <br>
+ * Thread safe, comments are only added and a store is replaced as a whole
+ * when most of its comments are no longer cached.
+ *
+ * @author bhagc
+ */
+final class CommentStore {
+
+    static final int BLOCK_SIZE = 64;
+    /**
+     * Id of a null comment, which is not stored
+     */
+    static final int NONE = -1;
+    private static final int TABLE_BITS = 12;
+    private static final int INFLATED_BLOCKS = 256;
+    private static final ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(Inflater::new);
+    private final AtomicReferenceArray<Interned> table = new AtomicReferenceArray<>(1 << TABLE_BITS);
+    /**
+     * Deflated blocks, null for a full block still being deflated, which is
+     * read from {@link #sealing}
+     */
+    private final List<byte[]> blocks = new ArrayList<>();
+    private final Map<Integer, String[]> sealing = new HashMap<>();
+    private String[] hot = new String[BLOCK_SIZE];
+    private final Map<Integer, String[]> inflated = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, String[]> eldest) {
+            return size() > INFLATED_BLOCKS;
+        }
+    };
+    private int size;
+
+    private record Interned(String text, int id, boolean found) {
+
+    }
+
+    /**
+     * @param comment comment of a review, may be null
+     * @return id of the comment, the id it was given before when it was
+     * interned
+     */
+    int add(String comment) {
+        if (comment == null) {
+            return NONE;
+        }
+        int bucket = IntHash.bucket(comment.hashCode(), TABLE_BITS);
+        Interned interned = table.get(bucket);
+        if (interned != null && interned.text().equals(comment)) {
+            if (!interned.found()) {
+                table.set(bucket, new Interned(comment, interned.id(), true));
+            }
+            return interned.id();
+        }
+        int id;
+        String[] full = null;
+        synchronized (this) {
+            id = size++;
+            hot[id % BLOCK_SIZE] = comment;
+            if (size % BLOCK_SIZE == 0) {
+                full = hot;
+                hot = new String[BLOCK_SIZE];
+                sealing.put(blocks.size(), full);
+                blocks.add(null);
+            }
+        }
+        if (full != null) {
+            byte[] block = deflate(full);
+            synchronized (this) {
+                blocks.set(id / BLOCK_SIZE, block);
+                sealing.remove(id / BLOCK_SIZE);
+            }
+        }
+        table.set(bucket, interned != null && interned.found()
+                ? new Interned(interned.text(), interned.id(), false) : new Interned(comment, id, false));
+        return id;
+    }
+
+    /**
+     * @param id id returned by {@link #add}
+     * @return the comment
+     */
+    String get(int id) {
+        if (id == NONE) {
+            return null;
+        }
+        int block = id / BLOCK_SIZE;
+        byte[] deflated;
+        synchronized (this) {
+            if (id < 0 || id >= size) {
+                throw new IndexOutOfBoundsException(id);
+            }
+            if (block == blocks.size()) {
+                return hot[id % BLOCK_SIZE];
+            }
+            String[] comments = sealing.get(block);
+            if (comments == null) {
+                comments = inflated.get(block);
+            }
+            if (comments != null) {
+                return comments[id % BLOCK_SIZE];
+            }
+            deflated = blocks.get(block);
+        }
+        String[] comments = inflate(deflated);
+        synchronized (this) {
+            inflated.put(block, comments);
+        }
+        return comments[id % BLOCK_SIZE];
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    private static byte[] deflate(String[] comments) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(BLOCK_SIZE * 32);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            for (String comment : comments) {
+                byte[] text = utf8(comment);
+                out.writeInt(text.length);
+                out.write(text);
+            }
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        byte[] raw = bytes.toByteArray();
+        Deflater deflater = new Deflater();
+        try {
+            deflater.setInput(raw);
+            deflater.finish();
+            byte[] buffer = new byte[raw.length + 64];
+            int length = 0;
+            while (!deflater.finished()) {
+                if (length == buffer.length) {
+                    buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                }
+                length += deflater.deflate(buffer, length, buffer.length - length);
+            }
+            return Arrays.copyOf(buffer, length);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static String[] inflate(byte[] block) {
+        Inflater inflater = inflaters.get();
+        try {
+            inflater.setInput(block);
+            byte[] raw = new byte[Math.max(256, block.length * 8)];
+            int length = 0;
+            while (!inflater.finished()) {
+                if (length == raw.length) {
+                    raw = Arrays.copyOf(raw, raw.length * 2);
+                }
+                int inflated = inflater.inflate(raw, length, raw.length - length);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IllegalStateException("Truncated comment block");
+                }
+                length += inflated;
+            }
+            ByteBuffer in = ByteBuffer.wrap(raw, 0, length);
+            String[] comments = new String[BLOCK_SIZE];
+            for (int i = 0; i < BLOCK_SIZE; i++) {
+                int size = in.getInt();
+                comments[i] = new String(raw, in.position(), size, StandardCharsets.UTF_8);
+                in.position(in.position() + size);
+            }
+            return comments;
+        } catch (DataFormatException | RuntimeException ex) {
+            throw new IllegalStateException("Corrupt comment block", ex);
+        } finally {
+            inflater.reset();
+        }
+    }
+
+    private static byte[] utf8(String comment) {
+        return comment.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2023 bhagc
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.file.service;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntFunction;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import labs.pm.data.Product;
+import labs.pm.data.Review;
+
+/**
+ * Loads the {@code product{id}.csv}/{@code reviews{id}.csv} layout with a
+ * fork/join pool.
+ * <br>
+ * The file list is split in halves until a task holds at most
+ * {@value #THRESHOLD} product files, each task parses its products with their
+ * reviews and puts them straight into one shared concurrent map. Files, records
+ * and parse errors are counted while loading and logged with their rates.
+ *
+ * @author bhagc
+ */
+class CsvLoader {
+
+    private static final int THRESHOLD = 128;
+    private static final long PROGRESS_STEP = 10_000;
+    private static final Logger logger = Logger.getLogger(CsvLoader.class.getName());
+    private final Path dataFolder;
+    private final Charset charset;
+    private final RecordFormat format;
+    private final IntFunction<Path> reviewsFile;
+    private final int parallelism;
+    private final AtomicLong files = new AtomicLong();
+    private final LongAdder records = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private long start;
+
+    CsvLoader(Path dataFolder, Charset charset, RecordFormat format,
+            IntFunction<Path> reviewsFile, int parallelism) {
+        this.dataFolder = dataFolder;
+        this.charset = charset;
+        this.format = format;
+        this.reviewsFile = reviewsFile;
+        this.parallelism = parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors();
+    }
+
+    Map<Product, List<Review>> load() throws IOException {
+        start = System.nanoTime();
+        List<Path> productFiles = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dataFolder, "product*")) {
+            stream.forEach(productFiles::add);
+        }
+        Map<Product, List<Review>> products = new ConcurrentHashMap<>(
+                Math.max(16, productFiles.size() * 4 / 3 + 1), 0.75f, parallelism);
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            pool.invoke(new LoadTask(productFiles, 0, productFiles.size(), products));
+        } finally {
+            pool.shutdown();
+        }
+        report(Level.INFO, "Loaded");
+        return products;
+    }
+
+    private void loadProduct(Path file, Map<Product, List<Review>> products) {
+        Product product = null;
+        try (BufferedReader in = Files.newBufferedReader(file, charset)) {
+            String line = in.readLine();
+            product = line == null ? null : format.parseProduct(line);
+        } catch (IOException ex) {
+            logger.log(Level.WARNING, ex.getMessage());
+        }
+        countFile();
+        if (product == null) {
+            errors.increment();
+            return;
+        }
+        records.increment();
+        products.put(product, loadReviews(product.getId()));
+    }
+
+    private List<Review> loadReviews(int id) {
+        List<Review> reviews = new ArrayList<>();
+        try (BufferedReader in = Files.newBufferedReader(reviewsFile.apply(id), charset)) {
+            countFile();
+            String line;
+            while ((line = in.readLine()) != null) {
+                Review review = format.parseReview(line);
+                if (review == null) {
+                    errors.increment();
+                } else {
+                    reviews.add(review);
+                }
+            }
+            records.add(reviews.size());
+        } catch (NoSuchFileException ex) {
+            // product without reviews
+        } catch (IOException ex) {
+            logger.log(Level.WARNING, ex.getMessage());
+        }
+        return reviews;
+    }
+
+    private void countFile() {
+        if (files.incrementAndGet() % PROGRESS_STEP == 0) {
+            report(Level.FINE, "Loading");
+        }
+    }
+
+    private void report(Level level, String stage) {
+        double seconds = Math.max(System.nanoTime() - start, 1) / 1e9;
+        long fileCount = files.get();
+        long recordCount = records.sum();
+        logger.log(level, "{0} {1} files, {2} records, {3} parse errors in {4} s ({5} files/s, {6} records/s)",
+                new Object[]{stage, fileCount, recordCount, errors.sum(),
+                    String.format("%.3f", seconds),
+                    Math.round(fileCount / seconds), Math.round(recordCount / seconds)});
+    }
+
+    @SuppressWarnings("serial")
+    private class LoadTask extends RecursiveAction {
+
+        private final List<Path> productFiles;
+        private final int from;
+        private final int to;
+        private final Map<Product, List<Review>> products;
+
+        LoadTask(List<Path> productFiles, int from, int to, Map<Product, List<Review>> products) {
+            this.productFiles = productFiles;
+            this.from = from;
+            this.to = to;
+            this.products = products;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= THRESHOLD) {
+                for (int i = from; i < to; i++) {
+                    loadProduct(productFiles.get(i), products);
+                }
+            } else {
+                int middle = (from + to) >>> 1;
+                invokeAll(new LoadTask(productFiles, from, middle, products),
+                        new LoadTask(productFiles, middle, to, products));
+            }
+        }
+    }
+}
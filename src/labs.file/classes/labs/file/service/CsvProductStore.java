@@ -0,0 +1,375 @@
+/*
+ * Copyright (C) 2023 bhagc
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.file.service;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.text.MessageFormat;
+import java.text.NumberFormat;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.ResourceBundle;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntUnaryOperator;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+import labs.pm.data.Product;
+import labs.pm.data.Review;
+
+/**
+ * Stores each product in its own {@code product{id}.csv} file and its reviews
+ * in {@code reviews{id}.csv}.
+ * <br>
+ * The layout keeps no write order, so every batch first appends the files it
+ * changes, as the type and id of the product and the size of the file before
+ * the batch, to a change journal of {@code changes{n}.log} files. The store
+ * position is the number of the journal file and the offset in it, a new
+ * file is started at every snapshot and the files before a snapshot are
+ * deleted once it is written. A rollback cuts every file changed after a
+ * position back to the size it had then.
+ *
+ * @author bhagc
+ */
+class CsvProductStore implements ProductStore {
+
+    private final ResourceBundle config;
+    private final RecordFormat format;
+    private final Path dataFolder;
+    private static final int OFFSET_BITS = 40;
+    private static final long OFFSET_MASK = (1L << OFFSET_BITS) - 1;
+    private static final byte PRODUCT = 'P';
+    private static final byte REVIEWS = 'R';
+    private static final int CHANGE_SIZE = 1 + Integer.BYTES + Long.BYTES;
+    private final Charset charset = Charset.forName("UTF-8");
+    private final Set<Path> unsynced = ConcurrentHashMap.newKeySet();
+    private static final Logger logger = Logger.getLogger(CsvProductStore.class.getName());
+    private int journal = -1;
+    private long journalSize;
+
+    /**
+     * Ids of the products and review files changed after a position, with
+     * the size of each file at the position
+     */
+    private record Changes(Map<Integer, Long> products, Map<Integer, Long> reviews) {
+
+    }
+
+    CsvProductStore(ResourceBundle config) {
+        this.config = config;
+        this.format = new RecordFormat(config);
+        this.dataFolder = Path.of(config.getString("data.folder"));
+    }
+
+    /**
+     * A data folder that does not exist yet holds an empty catalog
+     */
+    @Override
+    public Map<Product, List<Review>> loadAll() throws IOException {
+        if (Files.notExists(dataFolder)) {
+            return new HashMap<>();
+        }
+        return new CsvLoader(dataFolder, charset, format, this::reviewsFile,
+                Integer.parseInt(config.getString("load.parallelism"))).load();
+    }
+
+    @Override
+    public List<Review> loadReviews(int id) {
+        List<Review> reviews = new ArrayList<>();
+        Path file = reviewsFile(id);
+        if (Files.exists(file)) {
+            try (Stream<String> lines = Files.lines(file, charset)) {
+                lines.map(text -> format.parseReview(text))
+                        .filter(review -> review != null)
+                        .forEach(reviews::add);
+            } catch (IOException ex) {
+                logger.log(Level.INFO, ex.getMessage());
+            }
+        }
+        return reviews;
+    }
+
+    /**
+     * Product and review files changed after the position are read again,
+     * reviews the snapshot already holds are skipped
+     */
+    @Override
+    public List<StoreRecord> loadSince(long position, IntUnaryOperator known) throws IOException {
+        List<StoreRecord> records = new ArrayList<>();
+        Changes changes = changesSince(position);
+        for (int id : changes.products().keySet()) {
+            Path file = productFile(id);
+            if (Files.exists(file)) {
+                try (BufferedReader in = Files.newBufferedReader(file, charset)) {
+                    String line = in.readLine();
+                    Product product = line == null ? null : format.parseProduct(line);
+                    if (product != null) {
+                        records.add(StoreRecord.of(product));
+                    }
+                }
+            }
+        }
+        for (int id : changes.reviews().keySet()) {
+            List<Review> all = loadReviews(id);
+            for (Review review : all.subList(Math.min(Math.max(known.applyAsInt(id), 0), all.size()), all.size())) {
+                records.add(StoreRecord.of(id, review));
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Product files created after the position are deleted, review files
+     * changed after it are cut back to their size at the position, then the
+     * journal is cut at the position
+     */
+    @Override
+    public synchronized void rollback(long position) throws IOException {
+        Changes changes = changesSince(position);
+        for (Map.Entry<Integer, Long> product : changes.products().entrySet()) {
+            if (product.getValue() == 0) {
+                Files.deleteIfExists(productFile(product.getKey()));
+            }
+        }
+        for (Map.Entry<Integer, Long> reviews : changes.reviews().entrySet()) {
+            Path file = reviewsFile(reviews.getKey());
+            if (reviews.getValue() == 0) {
+                Files.deleteIfExists(file);
+            } else if (Files.exists(file)) {
+                try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                    if (channel.size() > reviews.getValue()) {
+                        channel.truncate(reviews.getValue());
+                    }
+                }
+            }
+        }
+        int number = (int) (position >>> OFFSET_BITS);
+        long offset = position & OFFSET_MASK;
+        for (int later = journal; later > number; later--) {
+            Files.deleteIfExists(journalFile(later));
+        }
+        if (Files.exists(journalFile(number))) {
+            try (FileChannel channel = FileChannel.open(journalFile(number), StandardOpenOption.WRITE)) {
+                channel.truncate(offset);
+            }
+        }
+        journal = number;
+        journalSize = offset;
+    }
+
+    /**
+     * Forces the files written without forcing since the last call
+     */
+    @Override
+    public void sync() throws IOException {
+        for (Path file : List.copyOf(unsynced)) {
+            unsynced.remove(file);
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                channel.force(false);
+            } catch (NoSuchFileException ex) {
+                // deleted by a rollback
+            }
+        }
+    }
+
+    /**
+     * Starts a new journal file unless the current one is empty
+     */
+    @Override
+    public synchronized long position() throws IOException {
+        openJournal();
+        if (journalSize > 0) {
+            journal++;
+            journalSize = 0;
+        }
+        return (long) journal << OFFSET_BITS;
+    }
+
+    /**
+     * Deletes the journal files before the one of the position
+     */
+    @Override
+    public synchronized void checkpoint(long position) throws IOException {
+        int number = (int) (position >>> OFFSET_BITS);
+        for (int older = number - 1; older >= 0 && Files.exists(journalFile(older)); older--) {
+            Files.delete(journalFile(older));
+        }
+    }
+
+    @Override
+    public Path snapshotFile() {
+        return dataFolder.resolve(config.getString("snapshot.file"));
+    }
+
+    /**
+     * Groups the batch by file, each file is opened, written and closed once
+     */
+    @Override
+    public void write(List<StoreRecord> records, boolean force) throws IOException {
+        Files.createDirectories(dataFolder);
+        Map<Path, StringBuilder> files = new LinkedHashMap<>();
+        Set<Path> productFiles = new HashSet<>();
+        ByteBuffer changes = ByteBuffer.allocate(records.size() * CHANGE_SIZE);
+        for (StoreRecord record : records) {
+            Path file = record.product() != null ? productFile(record.id()) : reviewsFile(record.id());
+            if (!files.containsKey(file)) {
+                changes.put(record.product() != null ? PRODUCT : REVIEWS).putInt(record.id())
+                        .putLong(Files.exists(file) ? Files.size(file) : 0);
+            }
+            if (record.product() != null) {
+                productFiles.add(file);
+                files.computeIfAbsent(file, k -> new StringBuilder())
+                        .append(format.formatProduct(record.product()));
+            } else {
+                files.computeIfAbsent(file, k -> new StringBuilder())
+                        .append(format.formatReview(record.review()))
+                        .append("\n");
+            }
+        }
+        appendChanges(changes.flip(), force);
+        for (Map.Entry<Path, StringBuilder> file : files.entrySet()) {
+            OpenOption mode = productFiles.contains(file.getKey())
+                    ? StandardOpenOption.TRUNCATE_EXISTING : StandardOpenOption.APPEND;
+            try (FileChannel out = FileChannel.open(file.getKey(),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, mode)) {
+                ByteBuffer buffer = charset.encode(CharBuffer.wrap(file.getValue()));
+                while (buffer.hasRemaining()) {
+                    out.write(buffer);
+                }
+                if (force) {
+                    out.force(false);
+                } else {
+                    unsynced.add(file.getKey());
+                }
+            }
+        }
+    }
+
+    /**
+     * Appends the changes of a batch to the journal before the batch is
+     * written, so no changed file is missed after a crash
+     */
+    private synchronized void appendChanges(ByteBuffer changes, boolean force) throws IOException {
+        openJournal();
+        Path file = journalFile(journal);
+        try (FileChannel out = FileChannel.open(file,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            journalSize += changes.remaining();
+            while (changes.hasRemaining()) {
+                out.write(changes);
+            }
+            if (force) {
+                out.force(false);
+            } else {
+                unsynced.add(file);
+            }
+        }
+    }
+
+    /**
+     * Reads the journal from a position on
+     *
+     * @throws IOException if the journal ends before the position
+     */
+    private synchronized Changes changesSince(long position) throws IOException {
+        openJournal();
+        int first = (int) (position >>> OFFSET_BITS);
+        long offset = position & OFFSET_MASK;
+        Path firstFile = journalFile(first);
+        if ((Files.exists(firstFile) ? Files.size(firstFile) : 0) < offset
+                || first < journal && Files.notExists(firstFile)) {
+            throw new IOException("Store changes end before the snapshot position");
+        }
+        if (first > journal) {
+            journal = first;
+            journalSize = 0;
+        }
+        Changes changes = new Changes(new LinkedHashMap<>(), new LinkedHashMap<>());
+        for (int number = first; number <= journal; number++) {
+            Path file = journalFile(number);
+            if (Files.notExists(file)) {
+                continue;
+            }
+            ByteBuffer bytes = ByteBuffer.wrap(Files.readAllBytes(file));
+            bytes.position(number == first ? (int) offset : 0);
+            while (bytes.remaining() >= CHANGE_SIZE) {
+                byte type = bytes.get();
+                int id = bytes.getInt();
+                long size = bytes.getLong();
+                (type == PRODUCT ? changes.products() : changes.reviews()).putIfAbsent(id, size);
+            }
+        }
+        return changes;
+    }
+
+    /**
+     * Finds the last journal file on first use
+     */
+    private void openJournal() throws IOException {
+        if (journal >= 0) {
+            return;
+        }
+        journal = 0;
+        if (Files.exists(dataFolder)) {
+            MessageFormat journalName = new MessageFormat(config.getString("changes.file"));
+            NumberFormat idFormat = NumberFormat.getIntegerInstance();
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(dataFolder, "changes*")) {
+                for (Path file : files) {
+                    try {
+                        int number = idFormat.parse((String) journalName.parse(
+                                file.getFileName().toString())[0]).intValue();
+                        journal = Math.max(journal, number);
+                    } catch (ParseException ex) {
+                        logger.log(Level.WARNING, "Unknown journal file {0}", file);
+                    }
+                }
+            }
+        }
+        Path file = journalFile(journal);
+        journalSize = Files.exists(file) ? Files.size(file) : 0;
+    }
+
+    private Path journalFile(int number) {
+        return dataFolder.resolve(MessageFormat.format(config.getString("changes.file"), number));
+    }
+
+    private Path productFile(int id) {
+        return dataFolder.resolve(
+                MessageFormat.format(config.getString("product.data.file"), id));
+    }
+
+    private Path reviewsFile(int id) {
+        return dataFolder.resolve(
+                MessageFormat.format(config.getString("reviews.data.file"), id));
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright (C) 2023 bhagc
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.file.service;
+
+/**
+ * Hashing of int keys shared by the open addressing tables and striped locks
+ * of the package.
+ * <br>
+ * Keys are multiplied by the golden ratio constant and their high bits folded
+ * into the low bits, so sequential ids spread over the whole table. Tables
+ * are a power of two in size and probed linearly.
+ *
+ * @author bhagc
+ */
+final class IntHash {
+
+    private static final int GOLDEN_RATIO = 0x9E3779B9;
+
+    private IntHash() {
+    }
+
+    /**
+     * @return first slot of a key in a table of {@code mask + 1} slots
+     */
+    static int slot(int key, int mask) {
+        int h = key * GOLDEN_RATIO;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    /**
+     * @return slot probed after a slot
+     */
+    static int next(int slot, int mask) {
+        return (slot + 1) & mask;
+    }
+
+    /**
+     * @return bucket of a key in a table of {@code 1 << bits} buckets, taken
+     * from the high bits of the product
+     */
+    static int bucket(int key, int bits) {
+        return (key * GOLDEN_RATIO) >>> (Integer.SIZE - bits);
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2023 bhagc
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.file.service;
+
+import java.util.Arrays;
+import java.util.function.ObjIntConsumer;
+
+/**
+ * Map keyed by product id for per product data: the rating summaries and
+ * changed products built while the catalog is loaded from the store or a
+ * snapshot, and the review offsets of a {@link SegmentProductStore}.
+ * <br>
+ * Open addressing table with linear probing keyed by primitive {@code int}
+ * and hashed by {@link IntHash}, so lookups neither box the id nor scan the
+ * catalog. Not thread safe, a map is either confined to the loading thread
+ * or guarded by the lock of its owner.
+ *
+ * @author bhagc
+ * @param <V> type of the values
+ */
+class IntMap<V> {
+
+    private static final int INITIAL_CAPACITY = 64;
+    private int[] keys;
+    private V[] values;
+    private int size;
+
+    IntMap() {
+        this(INITIAL_CAPACITY);
+    }
+
+    @SuppressWarnings("unchecked")
+    IntMap(int expected) {
+        int capacity = INITIAL_CAPACITY;
+        while (capacity * 3 / 4 < expected) {
+            capacity <<= 1;
+        }
+        keys = new int[capacity];
+        values = (V[]) new Object[capacity];
+    }
+
+    V get(int id) {
+        int mask = keys.length - 1;
+        for (int i = IntHash.slot(id, mask); values[i] != null; i = IntHash.next(i, mask)) {
+            if (keys[i] == id) {
+                return values[i];
+            }
+        }
+        return null;
+    }
+
+    boolean contains(int id) {
+        return get(id) != null;
+    }
+
+    /**
+     * Adds or replaces the value stored under an id
+     *
+     * @param id key of the value
+     * @param value value to store, not null
+     * @return value previously stored under the same id or null
+     */
+    V put(int id, V value) {
+        if ((size + 1) * 4 > keys.length * 3) {
+            resize(keys.length << 1);
+        }
+        int mask = keys.length - 1;
+        int i = IntHash.slot(id, mask);
+        while (values[i] != null) {
+            if (keys[i] == id) {
+                V previous = values[i];
+                values[i] = value;
+                return previous;
+            }
+            i = IntHash.next(i, mask);
+        }
+        keys[i] = id;
+        values[i] = value;
+        size++;
+        return null;
+    }
+
+    V remove(int id) {
+        int mask = keys.length - 1;
+        int i = IntHash.slot(id, mask);
+        while (values[i] != null && keys[i] != id) {
+            i = IntHash.next(i, mask);
+        }
+        if (values[i] == null) {
+            return null;
+        }
+        V removed = values[i];
+        values[i] = null;
+        size--;
+        // shift back following entries of the probe chain into the hole
+        for (int j = IntHash.next(i, mask); values[j] != null; j = IntHash.next(j, mask)) {
+            int home = IntHash.slot(keys[j], mask);
+            if (((j - home) & mask) >= ((j - i) & mask)) {
+                keys[i] = keys[j];
+                values[i] = values[j];
+                values[j] = null;
+                i = j;
+            }
+        }
+        return removed;
+    }
+
+    int size() {
+        return size;
+    }
+
+    void clear() {
+        Arrays.fill(values, null);
+        size = 0;
+    }
+
+    /**
+     * Passes every value with its id to the action, in no particular order
+     */
+    void forEach(ObjIntConsumer<V> action) {
+        for (int i = 0; i < keys.length; i++) {
+            if (values[i] != null) {
+                action.accept(values[i], keys[i]);
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void resize(int capacity) {
+        int[] oldKeys = keys;
+        V[] oldValues = values;
+        keys = new int[capacity];
+        values = (V[]) new Object[capacity];
+        int mask = capacity - 1;
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (oldValues[j] != null) {
+                int i = IntHash.slot(oldKeys[j], mask);
+                while (values[i] != null) {
+                    i = IntHash.next(i, mask);
+                }
+                keys[i] = oldKeys[j];
+                values[i] = oldValues[j];
+            }
+        }
+    }
+}
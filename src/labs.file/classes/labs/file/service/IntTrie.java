@@ -0,0 +1,224 @@
+/*
+ * Copyright (C) 2023 bhagc
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.file.service;
+
+import java.util.Arrays;
+import java.util.stream.Stream;
+
+/**
+ * Immutable map keyed by product id, the persistent counterpart of
+ * {@link IntMap} used for the versions of the catalog.
+ * <br>
+ * Hash array mapped trie taking five bits of the id per level, lowest bits
+ * first. A node holds a bitmap of its used slots and an array of just those
+ * slots, each an entry or a child node. {@link #put put} copies the nodes on
+ * the path to the id, at most seven and usually three or four, and shares
+ * all others with the previous version, so versions are cheap to make and
+ * safe to read from any thread without locking.
+ *
+ * @author bhagc
+ * @param <V> type of the values
+ */
+final class IntTrie<V> {
+
+    private static final Node EMPTY_NODE = new Node(0, new Object[0], null);
+    private static final IntTrie<?> EMPTY = new IntTrie<>(EMPTY_NODE, 0);
+    private final Node root;
+    private final int size;
+
+    private record Entry(int key, Object value) {
+
+    }
+
+    /**
+     * Trie node, changed in place only by the {@link Builder} that owns it
+     */
+    private static final class Node {
+
+        private int bitmap;
+        private Object[] slots;
+        private final Object owner;
+
+        private Node(int bitmap, Object[] slots, Object owner) {
+            this.bitmap = bitmap;
+            this.slots = slots;
+            this.owner = owner;
+        }
+    }
+
+    private IntTrie(Node root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    @SuppressWarnings("unchecked")
+    static <V> IntTrie<V> empty() {
+        return (IntTrie<V>) EMPTY;
+    }
+
+    @SuppressWarnings("unchecked")
+    V get(int id) {
+        Node node = root;
+        for (int shift = 0;; shift += 5) {
+            int bit = 1 << ((id >>> shift) & 31);
+            if ((node.bitmap & bit) == 0) {
+                return null;
+            }
+            Object slot = node.slots[Integer.bitCount(node.bitmap & (bit - 1))];
+            if (slot instanceof Entry entry) {
+                return entry.key() == id ? (V) entry.value() : null;
+            }
+            node = (Node) slot;
+        }
+    }
+
+    boolean contains(int id) {
+        return get(id) != null;
+    }
+
+    /**
+     * @param id key of the value
+     * @param value value to store, not null
+     * @return new version holding the value under the id
+     */
+    IntTrie<V> put(int id, V value) {
+        boolean[] added = {false};
+        Node updated = put(root, id, value, 0, null, added);
+        return new IntTrie<>(updated, added[0] ? size + 1 : size);
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return values in no particular order, parallel streams split at the
+     * slots of the root
+     */
+    @SuppressWarnings("unchecked")
+    Stream<V> values() {
+        return (Stream<V>) values(root);
+    }
+
+    private static Stream<Object> values(Node node) {
+        return Arrays.stream(node.slots)
+                .flatMap(slot -> slot instanceof Entry entry ? Stream.of(entry.value()) : values((Node) slot));
+    }
+
+    /**
+     * Adds an entry below a node, copying the node unless it is owned by the
+     * given builder
+     */
+    private static Node put(Node node, int id, Object value, int shift, Object owner, boolean[] added) {
+        int bit = 1 << ((id >>> shift) & 31);
+        int i = Integer.bitCount(node.bitmap & (bit - 1));
+        if ((node.bitmap & bit) == 0) {
+            added[0] = true;
+            Object[] slots = new Object[node.slots.length + 1];
+            System.arraycopy(node.slots, 0, slots, 0, i);
+            slots[i] = new Entry(id, value);
+            System.arraycopy(node.slots, i, slots, i + 1, node.slots.length - i);
+            return update(node, node.bitmap | bit, slots, owner);
+        }
+        Object slot = node.slots[i];
+        Object replacement;
+        if (slot instanceof Entry entry) {
+            if (entry.key() == id) {
+                replacement = new Entry(id, value);
+            } else {
+                added[0] = true;
+                replacement = split(entry, new Entry(id, value), shift + 5, owner);
+            }
+        } else {
+            Node child = (Node) slot;
+            replacement = put(child, id, value, shift + 5, owner, added);
+            if (replacement == child) {
+                return node;
+            }
+        }
+        if (owner != null && node.owner == owner) {
+            node.slots[i] = replacement;
+            return node;
+        }
+        Object[] slots = node.slots.clone();
+        slots[i] = replacement;
+        return new Node(node.bitmap, slots, owner);
+    }
+
+    private static Node update(Node node, int bitmap, Object[] slots, Object owner) {
+        if (owner != null && node.owner == owner) {
+            node.bitmap = bitmap;
+            node.slots = slots;
+            return node;
+        }
+        return new Node(bitmap, slots, owner);
+    }
+
+    /**
+     * @return node holding two entries of different ids that share the slots
+     * above the given level
+     */
+    private static Node split(Entry a, Entry b, int shift, Object owner) {
+        int ia = (a.key() >>> shift) & 31;
+        int ib = (b.key() >>> shift) & 31;
+        if (ia == ib) {
+            return new Node(1 << ia, new Object[]{split(a, b, shift + 5, owner)}, owner);
+        }
+        return new Node((1 << ia) | (1 << ib), ia < ib ? new Object[]{a, b} : new Object[]{b, a}, owner);
+    }
+
+    /**
+     * Builds a trie changing its own nodes in place, so loading a catalog does
+     * not copy a path for every product. A builder must not be used after
+     * {@link #build()}.
+     *
+     * @param <V> type of the values
+     */
+    static final class Builder<V> {
+
+        private Object owner = new Object();
+        private Node root;
+        private int size;
+
+        Builder() {
+            this(empty());
+        }
+
+        /**
+         * @param base version the built trie starts from, its nodes are copied
+         * before they are changed
+         */
+        Builder(IntTrie<V> base) {
+            this.root = base.root;
+            this.size = base.size;
+        }
+
+        Builder<V> put(int id, V value) {
+            boolean[] added = {false};
+            root = IntTrie.put(root, id, value, 0, owner, added);
+            if (added[0]) {
+                size++;
+            }
+            return this;
+        }
+
+        IntTrie<V> build() {
+            owner = null;
+            return new IntTrie<>(root, size);
+        }
+    }
+}
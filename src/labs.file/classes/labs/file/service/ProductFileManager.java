@@ -17,313 +17,943 @@
 package labs.file.service;
 
 import java.io.IOException;
-import java.io.OutputStreamWriter;
-import java.io.PrintWriter;
+import java.io.UncheckedIOException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.math.BigDecimal;
-import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.StandardOpenOption;
-import java.text.MessageFormat;
-import java.text.ParseException;
+import java.time.Duration;
 import java.time.LocalDate;
-import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.ResourceBundle;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import labs.pm.data.Drink;
 import labs.pm.data.Food;
 import labs.pm.data.Product;
-import labs.pm.data.Rateable;
 import labs.pm.data.Rating;
+import labs.pm.data.RatingSummary;
 import labs.pm.data.Review;
+import labs.pm.service.CatalogSnapshot;
+import labs.pm.service.ImportSummary;
 import labs.pm.service.ProductManager;
 import labs.pm.service.ProductManagerException;
+import labs.pm.service.ProductPage;
+import labs.pm.service.ProductQuery;
+import labs.pm.service.ProductSort;
+import labs.pm.service.ProductSpec;
+import labs.pm.service.ReviewSpec;
 
 /**
+ * {@code ProductManager} keeping the catalog in memory and persisting every
+ * change to a {@link ProductStore}.
+ * <br>
+ * Changes of a product are serialized by one of {@code lock.stripes} striped
+ * locks chosen by the product id, so products hashed to different stripes are
+ * created and reviewed in parallel, with {@code lock.stripes=1} all changes
+ * are serialized by one lock. The catalog write lock is held just to
+ * publish the new product version, so readers never wait on disk.
+ * <br>
+ * The products, rating summaries and discounts are published as an immutable
+ * {@link Catalog} version replacing the previous one, so lookups, scans and
+ * {@link #snapshot() snapshots} take no lock and never hold up writers.
+ * Products are also indexed by rating, price and best before date, see
+ * {@link SecondaryIndexes}, a {@link ProductQuery} is read through the
+ * cheapest of them chosen by the {@link QueryPlanner}, the read lock is held
+ * only while the matching products are collected from an index.
+ * <br>
+ * New products and reviews are queued to a {@link StoreWriter} that writes
+ * them to the store in groups with the durability set by
+ * {@code writer.durability}. Bulk imports are checked and published a batch
+ * at a time.
+ * <br>
+ * Every {@code snapshot.interval} seconds and on {@link #close()} a changed
+ * catalog is written to a binary {@link SnapshotFile}. Startup maps the snapshot,
+ * checks it and replays only the store records written after it, products of
+ * the snapshot are decoded when they are looked up and the secondary indexes
+ * built by the first query using them. The whole store is parsed only when
+ * there is no usable snapshot.
+ * <br>
+ * With snapshots enabled and a {@code wal.file} set, records are appended to a
+ * {@link WriteAheadLog} before the store and a snapshot is a checkpoint: the
+ * store is forced, the snapshot written and the log before it deleted.
+ * Recovery cuts the store back to the snapshot and replays the log records
+ * written after it, so it takes time bounded by the snapshot interval and
+ * repairs records torn by a crash. Without a usable snapshot the store is cut
+ * back to the checkpoint the log starts at and the log replayed into it
+ * before the store is loaded, a manager that cannot replay the log does not
+ * start and leaves the log in place. The time recovery took is logged and
+ * returned by {@link #getRecoveryTime()}.
+ * <br>
+ * Settings are read from {@code config.properties} and can be overridden with
+ * {@code labs.file.<key>} system properties. The owner of a manager closes it
+ * when done, from a shutdown hook for a manager serving until exit.
  *
  * @author bhagc
  */
-public class ProductFileManager implements ProductManager {
+public class ProductFileManager implements ProductManager, AutoCloseable {
 
-    private Map<Product, List<Review>> products;
+    private volatile Catalog catalog = Catalog.EMPTY;
+    private volatile SecondaryIndexes indexes;
+    private final int[] ratingCounts = new int[Rating.values().length];
+    private long snapshotChanges = -1;
+    private final Lock snapshotLock = new ReentrantLock();
 
-    private final ResourceBundle config = ResourceBundle.getBundle("labs.file.service.config");
-    private final MessageFormat reviewFormat = new MessageFormat(config.getString("review.data.format"));
-    private final MessageFormat productFormat = new MessageFormat(config.getString("product.data.format"));
-    private final Path dataFolder = Path.of(config.getString("data.folder"));
+    private final ProductStore store;
+    private final WriteAheadLog log;
+    private final ScheduledExecutorService snapshots;
+    private boolean closed;
+    private final StoreWriter writer;
+    private final ReviewCache reviewCache;
+    private final QueryPlanner planner;
+    private final int importBatchSize;
+    private final Lock[] stripes;
     private final ReentrantReadWriteLock readWriteLock = new ReentrantReadWriteLock();
     private final Lock readLock = readWriteLock.readLock();
     private final Lock writeLock = readWriteLock.writeLock();
-    private final Charset charset = Charset.forName("UTF-8");
+    private volatile Duration recoveryTime = Duration.ZERO;
     private static final Logger logger = Logger.getLogger(ProductFileManager.class.getName());
 
     public ProductFileManager() {
+        this(loadConfig());
+    }
+
+    private ProductFileManager(ResourceBundle config) {
+        this(config, new CsvProductStore(config));
+    }
+
+    ProductFileManager(ResourceBundle config, ProductStore store) {
+        this.store = store;
+        long interval = Long.parseLong(config.getString("snapshot.interval"));
+        String logFile = config.getString("wal.file");
+        this.log = interval > 0 && !logFile.isBlank()
+                ? new WriteAheadLog(store.snapshotFile().getParent(), logFile, new RecordFormat(config)) : null;
+        this.writer = new StoreWriter(store, log,
+                StoreWriter.Durability.valueOf(config.getString("writer.durability").toUpperCase()),
+                Integer.parseInt(config.getString("writer.batch.size")),
+                Integer.parseInt(config.getString("writer.queue.size")));
+        this.planner = new QueryPlanner(Integer.parseInt(config.getString("query.parallel.threshold")));
+        this.importBatchSize = Math.max(1, Integer.parseInt(config.getString("import.batch.size")));
+        this.reviewCache = new ReviewCache(Integer.parseInt(config.getString("reviews.cache.size")));
+        int count = Integer.highestOneBit(Math.max(1, Integer.parseInt(config.getString("lock.stripes"))));
+        this.stripes = new Lock[count];
+        for (int i = 0; i < count; i++) {
+            stripes[i] = new ReentrantLock();
+        }
         loadAllData();
+        if (log != null && snapshotChanges < 0) {
+            // start the log from a checkpoint of the loaded store
+            writeSnapshot();
+        }
+        if (interval > 0) {
+            snapshots = Executors.newSingleThreadScheduledExecutor(task -> {
+                Thread thread = new Thread(task, "product-snapshot");
+                thread.setDaemon(true);
+                return thread;
+            });
+            snapshots.scheduleWithFixedDelay(this::writeSnapshot, interval, interval, TimeUnit.SECONDS);
+        } else {
+            snapshots = null;
+        }
     }
 
+    /**
+     * Stops the snapshots, writes a last snapshot of a changed catalog and
+     * closes the store writer and the write-ahead log, then logs the hits,
+     * misses and evictions of the review cache. Calls after the first do
+     * nothing.
+     */
     @Override
-    public Product createProduct(int id, String name, BigDecimal price, Rating rating) throws ProductManagerException {
-        Product product = null;
-        try {
-            writeLock.lock();
-            product = new Drink(id, name, price, rating);
-            if (!this.products.containsKey(product)) {
-                addProductToFile(product);
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (snapshots != null) {
+            snapshots.shutdown();
+            writeSnapshot();
+        }
+        writer.close();
+        if (log != null) {
+            try {
+                log.close();
+            } catch (IOException ex) {
+                logger.log(Level.WARNING, ex.getMessage());
             }
-            this.products.putIfAbsent(product, new ArrayList<>());
-        } catch (Exception ex) {
-            logger.log(Level.INFO, "Error in adding Product", ex.getMessage());
-            return null;
-        } finally {
-            writeLock.unlock();
         }
-        return product;
+        logger.log(Level.INFO, "Review cache: {0} hits, {1} misses, {2} evictions",
+                new Object[]{reviewCache.getHits(), reviewCache.getMisses(), reviewCache.getEvictions()});
+    }
+
+    /**
+     * @return configuration of the module, a system property named
+     * {@code labs.file.<key>} overrides the value of the key
+     */
+    static ResourceBundle loadConfig() {
+        ResourceBundle config = ResourceBundle.getBundle("labs.file.service.config");
+        return new ResourceBundle() {
+            @Override
+            protected Object handleGetObject(String key) {
+                String value = System.getProperty("labs.file." + key);
+                return value != null ? value : config.getObject(key);
+            }
+
+            @Override
+            public Enumeration<String> getKeys() {
+                return config.getKeys();
+            }
+        };
+    }
+
+    @Override
+    public Product createProduct(int id, String name, BigDecimal price, Rating rating) throws ProductManagerException {
+        return createProduct(new Drink(id, name, price, rating));
     }
 
     @Override
     public Product createProduct(int id, String name, BigDecimal price, Rating rating, LocalDate bestBefore) throws ProductManagerException {
-        Product product = null;
-        try {
-            writeLock.lock();
-            product = new Food(id, name, price, rating, bestBefore);
-            if (!this.products.containsKey(product)) {
-                addProductToFile(product);
+        return createProduct(new Food(id, name, price, rating, bestBefore));
+    }
+
+    /**
+     * Products are created in batches of {@code import.batch.size}. A batch is
+     * checked for duplicates and published under one acquisition of the locks
+     * and its records are queued together, so the writer commits them in large
+     * groups. Returns once all created products are written.
+     */
+    @Override
+    public ImportSummary createProducts(Stream<ProductSpec> specs) throws ProductManagerException {
+        ImportSummary summary = ImportSummary.EMPTY;
+        List<CompletableFuture<Void>> written = new ArrayList<>();
+        List<ProductSpec> batch = new ArrayList<>(Math.min(importBatchSize, 1024));
+        for (Iterator<ProductSpec> it = specs.iterator(); it.hasNext();) {
+            batch.add(it.next());
+            if (batch.size() == importBatchSize || !it.hasNext()) {
+                summary = summary.add(createBatch(batch, written));
+                batch.clear();
             }
-            this.products.putIfAbsent(product, new ArrayList<>());
-        } catch (Exception ex) {
-            logger.log(Level.INFO, "Error in adding Product", ex.getMessage());
-            return null;
-        } finally {
-            writeLock.unlock();
         }
-        return product;
+        try {
+            CompletableFuture.allOf(written.toArray(CompletableFuture[]::new)).join();
+        } catch (CompletionException ex) {
+            throw new ProductManagerException("Error in writing imported products: " + ex.getCause().getMessage());
+        }
+        logger.log(Level.INFO, "Imported products: {0}", summary);
+        return summary;
     }
 
     @Override
     public Product reviewProduct(int id, Rating rating, String comments) throws ProductManagerException {
+        Lock lock = stripe(id);
         try {
-            writeLock.lock();
-            return reviewProduct(findProduct(id), rating, comments);
+            lock.lock();
+            Product product = findProduct(id);
+            Review review = new Review(rating, comments);
+            writer.submit(StoreRecord.of(id, review));
+            return reviewProduct(product, review);
         } catch (ProductManagerException ex) {
             logger.log(Level.INFO, ex.getMessage());
         } finally {
-            writeLock.unlock();
+            lock.unlock();
         }
         return null;
     }
 
+    /**
+     * Reviews are read in batches of {@code import.batch.size} and grouped by
+     * product. A group takes the stripe lock once, is queued to the store as
+     * consecutive records, so the writer appends it in one write, and updates
+     * the rating summary and the product once. The stream is read only as
+     * fast as the bounded store queue accepts records. Returns once all
+     * applied reviews are written.
+     */
+    @Override
+    public ImportSummary reviewProducts(Stream<ReviewSpec> reviews) throws ProductManagerException {
+        ImportSummary summary = ImportSummary.EMPTY;
+        List<CompletableFuture<Void>> written = new ArrayList<>();
+        Map<Integer, List<Review>> groups = new LinkedHashMap<>();
+        int pending = 0;
+        for (Iterator<ReviewSpec> it = reviews.iterator(); it.hasNext();) {
+            ReviewSpec review = it.next();
+            groups.computeIfAbsent(review.getId(), id -> new ArrayList<>()).add(review.toReview());
+            if (++pending == importBatchSize || !it.hasNext()) {
+                summary = summary.add(reviewBatch(groups, written));
+                groups.clear();
+                pending = 0;
+            }
+        }
+        try {
+            CompletableFuture.allOf(written.toArray(CompletableFuture[]::new)).join();
+        } catch (CompletionException ex) {
+            throw new ProductManagerException("Error in writing imported reviews: " + ex.getCause().getMessage());
+        }
+        logger.log(Level.INFO, "Imported reviews: {0}", summary);
+        return summary;
+    }
+
+    @Override
+    public CompletableFuture<Product> reviewProductAsync(int id, Rating rating, String comments) {
+        Lock lock = stripe(id);
+        try {
+            lock.lock();
+            Product product = findProduct(id);
+            Review review = new Review(rating, comments);
+            CompletableFuture<Void> written = writer.submit(StoreRecord.of(id, review));
+            Product reviewed = reviewProduct(product, review);
+            return written.thenApply(v -> reviewed);
+        } catch (ProductManagerException ex) {
+            return CompletableFuture.failedFuture(ex);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Current version of the catalog, taken in constant time without a lock
+     */
+    @Override
+    public CatalogSnapshot snapshot() {
+        return catalog;
+    }
+
     @Override
     public Product findProduct(int id) throws ProductManagerException {
+        return catalog.findProduct(id);
+    }
+
+    @Override
+    public List<Product> findProducts(Predicate<Product> filter) throws ProductManagerException {
+        return catalog.findProducts(filter);
+    }
+
+    @Override
+    public List<Product> findProducts(ProductQuery query) {
+        Catalog current = catalog;
+        QueryPlanner.Plan plan;
+        List<Product> candidates;
+        SecondaryIndexes indexes = indexes();
         try {
             readLock.lock();
-            return products.keySet()
-                    .stream()
-                    .filter(p -> p.getId() == id)
-                    .findFirst()
-                    .orElseThrow(() -> new ProductManagerException("Product with this id: " + id + " is not Found"));
+            plan = planner.plan(query, indexes, current.size());
+            candidates = switch (plan.access()) {
+                case RATING_INDEX ->
+                    indexes.rated(query.getMinRating(), query.getMaxRating());
+                case PRICE_RANGE ->
+                    indexes.pricedBetween(query.getMinPrice(), query.getMaxPrice());
+                case BEST_BEFORE_RANGE ->
+                    indexes.bestBefore(query.getBestBefore());
+                default ->
+                    null;
+            };
         } finally {
             readLock.unlock();
         }
+        logger.log(Level.FINE, "{0} read by {1}", new Object[]{query, plan});
+        if (plan.access() == QueryPlanner.Access.ID) {
+            Product product = current.product(query.getId());
+            return query.collect(product == null ? Stream.empty() : Stream.of(product));
+        }
+        if (candidates != null) {
+            return query.collect(candidates.stream());
+        }
+        return query.collect(plan.access() == QueryPlanner.Access.PARALLEL_SCAN
+                ? current.products().parallel() : current.products());
     }
 
+    /**
+     * Pages are selected from the current catalog version without taking the
+     * read lock, so listings run concurrently with each other and with writes.
+     */
     @Override
-    public List<Product> findProducts(Predicate<Product> filter) throws ProductManagerException {
-        return products.keySet().stream()
-                .filter(filter)
-                .collect(Collectors.toList());
+    public ProductPage listProducts(ProductSort sort, int limit, String after) {
+        return ProductPage.select(catalog.products(), sort, limit, after);
+    }
 
+    @Override
+    public List<Product> findProductsRatedAtLeast(Rating rating) {
+        SecondaryIndexes indexes = indexes();
+        try {
+            readLock.lock();
+            return indexes.ratedAtLeast(rating);
+        } finally {
+            readLock.unlock();
+        }
     }
 
     @Override
-    public List<Review> findReviews(int id) throws ProductManagerException {
-        List<Review> reviews = null;
-        Path file = dataFolder.resolve(
-                MessageFormat.format(config.getString("reviews.data.file"),
-                        id));
-        if (Files.notExists(file)) {
-            reviews = new ArrayList<>();
+    public List<Product> findProductsByPrice(BigDecimal from, BigDecimal to) {
+        SecondaryIndexes indexes = indexes();
+        try {
+            readLock.lock();
+            return indexes.pricedBetween(from, to);
+        } finally {
+            readLock.unlock();
+        }
+    }
 
-        } else {
+    @Override
+    public List<Product> findProductsBestBefore(LocalDate date) {
+        SecondaryIndexes indexes = indexes();
+        try {
+            readLock.lock();
+            return indexes.bestBefore(date);
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * Reviews of recently used products are served from memory, reviews of
+     * other products are read from the store and cached, evicting the least
+     * recently used product when the cache is full. A product that is not in
+     * the catalog has no reviews.
+     */
+    @Override
+    public List<Review> findReviews(int id) throws ProductManagerException {
+        if (!contains(id)) {
+            return new ArrayList<>();
+        }
+        List<Review> reviews = reviewCache.get(id);
+        if (reviews == null) {
+            Lock lock = stripe(id);
             try {
-                reviews = Files.lines(file, charset)
-                        .map(text -> parseReview(text)).filter(review -> review != null)
-                        .collect(Collectors.toList());
+                lock.lock();
+                writer.awaitWritten(id);
+                reviews = store.loadReviews(id);
+                reviewCache.put(id, reviews);
             } catch (IOException ex) {
                 logger.log(Level.INFO, ex.getMessage());
+                reviews = new ArrayList<>();
+            } finally {
+                lock.unlock();
             }
         }
         return reviews;
     }
 
+    @Override
+    public RatingSummary getRatingSummary(int id) throws ProductManagerException {
+        return catalog.getRatingSummary(id);
+    }
+
+    /**
+     * Discounts are kept up to date by every write, reading them takes no lock
+     *
+     * @return immutable sum of product discounts per rating
+     */
     @Override
     public Map<Rating, BigDecimal> getDiscounts() throws ProductManagerException {
+        return catalog.getDiscounts();
+    }
+
+    /**
+     * @return time the last startup took to load the snapshot or the store and
+     * replay the records written after it
+     */
+    public Duration getRecoveryTime() {
+        return recoveryTime;
+    }
+
+    /**
+     * Store position, log mark and store index read by the writer thread
+     * between the records of a snapshot and the records after it
+     */
+    private record Checkpoint(long position, WriteAheadLog.Mark mark, byte[] storeIndex) {
+
+    }
+
+    /**
+     * Writes a snapshot of the catalog if it changed since the last one.
+     * Changes of products wait only while the current catalog version is
+     * taken and a barrier queued behind its store records, the store writer
+     * reads the store position there and, with a write-ahead log, rolls the
+     * log. The records are written, and the snapshot listed and written,
+     * while changes go on. With a write-ahead log the snapshot is a
+     * checkpoint, the files of the log before it are deleted once the store
+     * is forced and the snapshot written.
+     */
+    void writeSnapshot() {
         try {
-            readLock.lock();
-            return products.keySet().stream().collect(
-                    Collectors.groupingBy(p -> p.getRating(),
-                            Collectors.collectingAndThen(
-                                    Collectors.summingDouble(p -> p.getDiscount().doubleValue()),
-                                    discount -> BigDecimal.valueOf(discount))));
+            snapshotLock.lock();
+            Catalog current;
+            CompletableFuture<Checkpoint> barrier;
+            for (Lock stripe : stripes) {
+                stripe.lock();
+            }
+            try {
+                current = catalog;
+                if (current.getVersion() == snapshotChanges) {
+                    return;
+                }
+                barrier = writer.barrier(() -> {
+                    long position = store.position();
+                    return new Checkpoint(position, log == null ? null : log.roll(position), store.index());
+                });
+            } finally {
+                for (Lock stripe : stripes) {
+                    stripe.unlock();
+                }
+            }
+            long start = System.nanoTime();
+            Checkpoint checkpoint;
+            try {
+                checkpoint = barrier.join();
+            } catch (CompletionException ex) {
+                logger.log(Level.WARNING, "Error in starting a snapshot", ex.getCause());
+                return;
+            }
+            List<Product> copy = current.products()
+                    .collect(Collectors.toCollection(() -> new ArrayList<>(current.size())));
+            List<RatingSummary> summaries = new ArrayList<>(copy.size());
+            for (Product product : copy) {
+                summaries.add(current.summary(product.getId()));
+            }
+            try {
+                WriteAheadLog.Mark mark = checkpoint.mark();
+                if (mark != null) {
+                    store.sync();
+                }
+                SnapshotFile.write(store.snapshotFile(), checkpoint.position(),
+                        mark == null ? 0 : mark.sequence(), copy, summaries, checkpoint.storeIndex());
+                store.checkpoint(checkpoint.position());
+                if (mark != null) {
+                    log.discard(mark);
+                }
+                snapshotChanges = current.getVersion();
+                logger.log(Level.INFO, "Wrote snapshot of {0} products in {1} ms",
+                        new Object[]{copy.size(), (System.nanoTime() - start) / 1_000_000});
+            } catch (IOException ex) {
+                logger.log(Level.WARNING, "Error in writing snapshot", ex);
+            }
         } finally {
-            readLock.unlock();
+            snapshotLock.unlock();
         }
     }
 
-    private void addProductToFile(Product product) {
-        if (Files.notExists(dataFolder)) {
+    private Product createProduct(Product product) {
+        int id = product.getId();
+        Lock lock = stripe(id);
+        try {
+            lock.lock();
+            if (!contains(id)) {
+                writer.submit(StoreRecord.of(product));
+                reviewCache.put(id, List.of());
+                publish(null, product, RatingSummary.EMPTY);
+            }
+        } catch (Exception ex) {
+            logger.log(Level.INFO, "Error in adding Product", ex.getMessage());
+            return null;
+        } finally {
+            lock.unlock();
+        }
+        return product;
+    }
+
+    /**
+     * Creates the products of a batch that do not exist yet, holding all
+     * stripe locks so no product of the batch is created concurrently
+     *
+     * @param batch products to create
+     * @param written receives a future completing when the batch is written
+     * @return numbers of created and duplicate products
+     */
+    private ImportSummary createBatch(List<ProductSpec> batch, List<CompletableFuture<Void>> written) {
+        List<Product> created = new ArrayList<>(batch.size());
+        for (Lock stripe : stripes) {
+            stripe.lock();
+        }
+        try {
+            Set<Integer> ids = new HashSet<>();
+            Catalog current = catalog;
+            for (ProductSpec spec : batch) {
+                if (!current.contains(spec.getId()) && ids.add(spec.getId())) {
+                    created.add(spec.toProduct());
+                }
+            }
+            CompletableFuture<?>[] writes = new CompletableFuture<?>[created.size()];
+            for (int i = 0; i < writes.length; i++) {
+                writes[i] = writer.submit(StoreRecord.of(created.get(i)));
+            }
+            written.add(CompletableFuture.allOf(writes));
+            publishAll(created);
+        } finally {
+            for (Lock stripe : stripes) {
+                stripe.unlock();
+            }
+        }
+        return new ImportSummary(created.size(), batch.size() - created.size(), 0, List.of());
+    }
+
+    /**
+     * Makes new products visible to readers with one update of the discounts,
+     * called under all stripe locks after the products are queued for the
+     * store
+     *
+     * @param created new products
+     */
+    private void publishAll(List<Product> created) {
+        try {
+            writeLock.lock();
+            Catalog current = catalog;
+            Map<Rating, BigDecimal> sums = new EnumMap<>(Rating.class);
+            sums.putAll(current.getDiscounts());
+            IntTrie.Builder<Product> products = new IntTrie.Builder<>(current.productTrie());
+            IntTrie.Builder<RatingSummary> ratings = new IntTrie.Builder<>(current.ratingTrie());
+            for (Product product : created) {
+                if (indexes != null) {
+                    indexes.add(product);
+                }
+                products.put(product.getId(), product);
+                ratings.put(product.getId(), RatingSummary.EMPTY);
+                ratingCounts[product.getRating().ordinal()]++;
+                sums.merge(product.getRating(), product.getDiscount(), BigDecimal::add);
+            }
+            catalog = current.with(products.build(), ratings.build(), Collections.unmodifiableMap(sums),
+                    created.size());
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Applies the reviews of a batch, one product at a time
+     *
+     * @param groups reviews by product id
+     * @param written receives a future completing when the batch is written
+     * @return numbers of applied reviews and of reviews of unknown products
+     */
+    private ImportSummary reviewBatch(Map<Integer, List<Review>> groups, List<CompletableFuture<Void>> written) {
+        long applied = 0;
+        long rejected = 0;
+        List<String> errors = new ArrayList<>();
+        List<CompletableFuture<Void>> writes = new ArrayList<>();
+        for (Map.Entry<Integer, List<Review>> group : groups.entrySet()) {
+            int id = group.getKey();
+            List<Review> added = group.getValue();
+            Lock lock = stripe(id);
             try {
-                Files.createDirectories(dataFolder);
-            } catch (IOException ex) {
-                logger.log(Level.SEVERE, ex.getMessage());
+                lock.lock();
+                Product product = findProduct(id);
+                for (Review review : added) {
+                    writes.add(writer.submit(StoreRecord.of(id, review)));
+                }
+                reviewCache.addAll(id, added);
+                RatingSummary summary = getSummary(id).addAll(added);
+                publish(product, product.applyRating(summary.getRating(), product.getVersion() + added.size()),
+                        summary);
+                applied += added.size();
+            } catch (ProductManagerException ex) {
+                rejected += added.size();
+                errors.add(ex.getMessage());
+            } finally {
+                lock.unlock();
             }
         }
-        Path productFile = dataFolder.resolve(
-                MessageFormat.format(config.getString("product.data.file"),
-                        product.getId()));
-        try (PrintWriter out = new PrintWriter(
-                new OutputStreamWriter(
-                        Files.newOutputStream(productFile,
-                                StandardOpenOption.CREATE),
-                        charset)
-        )) {
+        written.add(CompletableFuture.allOf(writes.toArray(CompletableFuture[]::new)));
+        return new ImportSummary(applied, 0, rejected, errors);
+    }
+
+    private Product reviewProduct(Product product, Review review) {
+        reviewCache.add(product.getId(), review);
+        RatingSummary summary = getSummary(product.getId()).add(review.getRating());
+        Product reviewed = product.applyRating(summary.getRating());
+        publish(product, reviewed, summary);
+        return reviewed;
+    }
+
+    /**
+     * Makes a new version of a product visible to readers, called under the
+     * stripe lock of the product after its change is queued for the store
+     *
+     * @param previous replaced version of the product or null for a new one
+     * @param product new version of the product
+     * @param summary rating summary of the new version
+     */
+    private void publish(Product previous, Product product, RatingSummary summary) {
+        try {
             writeLock.lock();
-            String type = product instanceof Food ? "F," : "D,";
-            out.write(type
-                    + product.getId()
-                    + "," + product.getName()
-                    + "," + product.getPrice().toString()
-                    + "," + product.getRating().ordinal() + "," + product.getBestBefore());
-        } catch (IOException ex) {
-            logger.log(Level.SEVERE, ex.getMessage());
+            if (indexes != null) {
+                if (previous != null) {
+                    indexes.remove(previous);
+                }
+                indexes.add(product);
+            }
+            Map<Rating, BigDecimal> sums = catalog.getDiscounts();
+            if (previous == null || previous.getRating() != product.getRating()) {
+                sums = updateDiscounts(sums, previous, product);
+            }
+            catalog = catalog.with(product, summary, sums);
         } finally {
             writeLock.unlock();
         }
     }
 
-    private void addReviewToFile(int id, Review review) {
-        if (Files.exists(dataFolder)) {
-            Path reviewFile = dataFolder.resolve(
-                    MessageFormat.format(config.getString("reviews.data.file"), id));
-            try (PrintWriter out = new PrintWriter(
-                    new OutputStreamWriter(
-                            Files.newOutputStream(reviewFile,
-                                    StandardOpenOption.CREATE,
-                                    StandardOpenOption.APPEND),
-                            charset)
-            )) {
+    /**
+     * @return secondary indexes of the catalog, built from the current
+     * version when first used
+     */
+    private SecondaryIndexes indexes() {
+        SecondaryIndexes built = indexes;
+        if (built == null) {
+            try {
                 writeLock.lock();
-                out.append(review.getRating().ordinal() + "," + review.getComments())
-                        .append("\n");
-            } catch (IOException ex) {
-                logger.log(Level.SEVERE, ex.getMessage());
+                built = indexes;
+                if (built == null) {
+                    built = new SecondaryIndexes();
+                    catalog.products().forEach(built::add);
+                    indexes = built;
+                }
             } finally {
                 writeLock.unlock();
             }
         }
+        return built;
     }
 
-    private Product reviewProduct(Product product, Rating rating, String comments) {
-        List<Review> reviews = this.products.get(product);
-        this.products.remove(product);
-        reviews.add(new Review(rating, comments));
-        addReviewToFile(product.getId(), new Review(rating, comments));
-        product = product.applyRating(Rateable
-                .convert((int) Math.round(
-                        reviews.stream()
-                                .mapToInt(r -> r.getRating().ordinal())
-                                .average().orElse(0))));
-        this.products.put(product, reviews);
-        return product;
+    private boolean contains(int id) {
+        return catalog.contains(id);
+    }
 
+    private RatingSummary getSummary(int id) {
+        return catalog.summary(id);
     }
 
-    private void loadAllData() {
-        try {
-            products = Files.list(dataFolder)
-                    .filter(path -> path.getFileName().toString().contains("product"))
-                    .map(path -> loadProduct(path))
-                    .filter(product -> product != null)
-                    .collect(Collectors.toMap(product -> product,
-                            product -> loadReviews(product)));
-        } catch (IOException ex) {
-            logger.log(Level.WARNING, ex.getMessage());
+    private Lock stripe(int id) {
+        return stripes[IntHash.slot(id, stripes.length - 1)];
+    }
+
+    /**
+     * Moves the discount of a product between rating groups, called under the
+     * write lock
+     *
+     * @param discounts current discounts
+     * @param removed product version leaving its group or null
+     * @param added product version joining its group or null
+     * @return new immutable copy of the discounts
+     */
+    private Map<Rating, BigDecimal> updateDiscounts(Map<Rating, BigDecimal> discounts, Product removed,
+            Product added) {
+        Map<Rating, BigDecimal> sums = new EnumMap<>(Rating.class);
+        sums.putAll(discounts);
+        if (removed != null) {
+            Rating rating = removed.getRating();
+            if (--ratingCounts[rating.ordinal()] == 0) {
+                sums.remove(rating);
+            } else {
+                sums.put(rating, sums.get(rating).subtract(removed.getDiscount()));
+            }
+        }
+        if (added != null) {
+            ratingCounts[added.getRating().ordinal()]++;
+            sums.merge(added.getRating(), added.getDiscount(), BigDecimal::add);
         }
+        return Collections.unmodifiableMap(sums);
     }
 
-    private Product loadProduct(Path file) {
-        Product product = null;
+    /**
+     * @throws UncheckedIOException if the catalog cannot be loaded while
+     * there is a write-ahead log, which may hold the only copy of records
+     */
+    private synchronized void loadAllData() {
+        long start = System.nanoTime();
         try {
-            product = parseProduct(
-                    Files.lines(dataFolder.resolve(file),
-                            charset)
-                            .findFirst().orElseThrow());
+            if (!loadSnapshot()) {
+                if (log != null) {
+                    replayLog();
+                }
+                loadStore();
+            }
         } catch (IOException ex) {
+            if (log != null) {
+                throw new UncheckedIOException("Cannot recover the catalog, the write-ahead log is kept", ex);
+            }
             logger.log(Level.WARNING, ex.getMessage());
         }
-        return product;
+        recoveryTime = Duration.ofNanos(System.nanoTime() - start);
+        logger.log(Level.INFO, "Recovered {0} products in {1} ms",
+                new Object[]{catalog.size(), recoveryTime.toMillis()});
     }
 
-    private List<Review> loadReviews(Product product) {
-        List<Review> reviews = null;
-        Path file = dataFolder.resolve(
-                MessageFormat.format(config.getString("reviews.data.file"),
-                        product.getId()));
+    /**
+     * Loads the catalog from the snapshot and the records written after it,
+     * read from the write-ahead log, which are written to the store again
+     * after cutting it back to the snapshot, or without a log from the store
+     *
+     * @return false when there is no usable snapshot
+     */
+    private boolean loadSnapshot() {
+        Path file = store.snapshotFile();
         if (Files.notExists(file)) {
-            reviews = new ArrayList<>();
-        } else {
-            try {
-                reviews = Files.lines(file, charset)
-                        .map(text -> parseReview(text)).filter(review -> review != null)
+            return false;
+        }
+        long start = System.nanoTime();
+        try {
+            SnapshotFile.Image image = SnapshotFile.read(file);
+            store.loadIndex(image.storeIndex());
+            Catalog base = new Catalog(image, IntTrie.empty(), IntTrie.empty(), 0, image.discounts(), 0);
+            List<StoreRecord> tail;
+            if (log != null) {
+                tail = log.recover(image.sequence()).stream()
+                        .map(WriteAheadLog.Entry::record)
                         .collect(Collectors.toList());
-            } catch (IOException ex) {
-                logger.log(Level.INFO, ex.getMessage());
+                store.rollback(image.position());
+                if (!tail.isEmpty()) {
+                    store.write(tail, false);
+                    store.sync();
+                }
+            } else {
+                tail = store.loadSince(image.position(), id -> {
+                    RatingSummary summary = base.summary(id);
+                    return summary == null ? 0 : summary.getCount();
+                });
             }
+            publishSnapshot(image, base, tail);
+            if (tail.isEmpty()) {
+                snapshotChanges = 0;
+            }
+            logger.log(Level.INFO, "Loaded snapshot of {0} products and {1} later records in {2} ms",
+                    new Object[]{image.size(), tail.size(), (System.nanoTime() - start) / 1_000_000});
+            return true;
+        } catch (IOException ex) {
+            logger.log(Level.WARNING, "Ignoring snapshot {0}: {1}", new Object[]{file, ex.getMessage()});
+            return false;
         }
-        return reviews;
     }
 
-    private Review parseReview(String text) {
-        Review review = null;
-        try {
-            Object[] values = reviewFormat.parse(text);
-            review = new Review(Rateable.convert(Integer.parseInt((String) values[0])),
-                    (String) values[1]);
-        } catch (ParseException ex) {
-            logger.log(Level.WARNING, "Error in parsing Review " + text, ex.getMessage());
-        } catch (NumberFormatException ex) {
-            logger.log(Level.WARNING, "Error in parsing Wrong Type Data " + text, ex.getMessage());
+    /**
+     * Writes the records of the log to the store without a snapshot to place
+     * them, the store is cut back to the checkpoint the oldest log file starts
+     * at and the records written again from there
+     *
+     * @throws IOException if the log does not tell its checkpoint or the store
+     * cannot be cut back to it or written
+     */
+    private void replayLog() throws IOException {
+        List<StoreRecord> records = log.recover(0).stream()
+                .map(WriteAheadLog.Entry::record)
+                .collect(Collectors.toList());
+        if (records.isEmpty()) {
+            return;
+        }
+        long position = log.startPosition();
+        if (position < 0) {
+            throw new IOException(records.size() + " log records have no checkpoint to replay them from");
         }
-        return review;
+        store.rollback(position);
+        store.write(records, false);
+        store.sync();
+        logger.log(Level.INFO, "Replayed {0} log records without a snapshot", records.size());
     }
 
-    private Product parseProduct(String text) {
-        Product product = null;
-        try {
-            Object[] values = productFormat.parse(text);
-            int id = Integer.parseInt((String) values[1]);
-            String name = (String) values[2];
-            BigDecimal price = new BigDecimal((String) values[3]);
-            Rating rating = Rating.values()[Integer.parseInt((String) values[4])];
-            switch ((String) values[0]) {
-                case "D" ->
-                    product = new Drink(id, name, price, rating);
-                case "F" -> {
-                    LocalDate bestBefore = LocalDate.parse((String) values[5]);
-                    product = new Food(id, name, price, rating, bestBefore);
-                }
+    private void loadStore() throws IOException {
+        Map<Product, List<Review>> data = store.loadAll();
+        List<Product> loaded = new ArrayList<>(data.size());
+        IntMap<RatingSummary> ratings = new IntMap<>(data.size());
+        for (Map.Entry<Product, List<Review>> entry : data.entrySet()) {
+            Product product = entry.getKey();
+            loaded.add(product);
+            ratings.put(product.getId(), RatingSummary.of(entry.getValue()));
+            if (!reviewCache.isFull()) {
+                reviewCache.put(product.getId(), entry.getValue());
             }
-        } catch (ParseException | NumberFormatException | DateTimeParseException ex) {
-            logger.log(Level.WARNING, "Error in parsing Product {0}", text);
         }
-        return product;
+        publishLoaded(loaded, ratings);
+    }
+
+    /**
+     * Applies the loaded rating summaries to the products and publishes the
+     * first catalog version with the discounts. The version of a product is 1
+     * plus its number of reviews, so versions survive restarts.
+     *
+     * @param loaded products as read from the store
+     * @param ratings rating summaries of the loaded products
+     */
+    private void publishLoaded(List<Product> loaded, IntMap<RatingSummary> ratings) {
+        Map<Rating, BigDecimal> sums = new EnumMap<>(Rating.class);
+        IntTrie.Builder<Product> products = new IntTrie.Builder<>();
+        IntTrie.Builder<RatingSummary> summaries = new IntTrie.Builder<>();
+        for (Product product : loaded) {
+            RatingSummary summary = ratings.get(product.getId());
+            if (summary.getCount() > 0) {
+                product = product.applyRating(summary.getRating(), 1L + summary.getCount());
+            }
+            products.put(product.getId(), product);
+            summaries.put(product.getId(), summary);
+            sums.merge(product.getRating(), product.getDiscount(), BigDecimal::add);
+            ratingCounts[product.getRating().ordinal()]++;
+        }
+        catalog = new Catalog(products.build(), summaries.build(), Collections.unmodifiableMap(sums), 0);
     }
 
+    /**
+     * Publishes the first catalog version over a snapshot, only the products
+     * changed by the records written after the snapshot are decoded. The
+     * version of a product is 1 plus its number of reviews, as for
+     * {@link #publishLoaded(List, IntMap)}.
+     *
+     * @param image mapped snapshot
+     * @param base catalog of the snapshot alone
+     * @param tail records written after the snapshot
+     */
+    private void publishSnapshot(SnapshotFile.Image image, Catalog base, List<StoreRecord> tail) {
+        int[] counts = image.ratingCounts();
+        System.arraycopy(counts, 0, ratingCounts, 0, counts.length);
+        Map<Rating, BigDecimal> sums = image.discounts();
+        IntTrie.Builder<Product> products = new IntTrie.Builder<>();
+        IntTrie.Builder<RatingSummary> summaries = new IntTrie.Builder<>();
+        IntMap<Product> changed = new IntMap<>(Math.max(16, tail.size()));
+        IntMap<RatingSummary> ratings = new IntMap<>(Math.max(16, tail.size()));
+        int added = 0;
+        for (StoreRecord record : tail) {
+            int id = record.id();
+            Product product = changed.get(id);
+            RatingSummary summary = ratings.get(id);
+            if (product == null) {
+                product = base.product(id);
+                summary = base.summary(id);
+            }
+            Product next;
+            if (record.product() != null) {
+                if (product != null) {
+                    continue;
+                }
+                next = record.product();
+                summary = RatingSummary.EMPTY;
+                added++;
+            } else if (product != null) {
+                summary = summary.add(record.review().getRating());
+                next = product.applyRating(summary.getRating(), 1L + summary.getCount());
+            } else {
+                logger.log(Level.WARNING, "Dropping review of unknown product {0}", id);
+                continue;
+            }
+            if (product == null || product.getRating() != next.getRating()) {
+                sums = updateDiscounts(sums, product, next);
+            }
+            changed.put(id, next);
+            ratings.put(id, summary);
+            products.put(id, next);
+            summaries.put(id, summary);
+        }
+        catalog = new Catalog(image, products.build(), summaries.build(), added, sums, 0);
+    }
 }
@@ -0,0 +1,38 @@
+/*
+ * Copyright (C) 2023 bhagc
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.file.service;
+
+import java.util.ResourceBundle;
+
+/**
+ * {@link ProductFileManager} keeping its data in append only segment files
+ * instead of one file per product, see {@link SegmentProductStore}.
+ * <br>
+ * Existing data is imported with {@link SegmentMigration}.
+ *
+ * @author bhagc
+ */
+public class ProductSegmentManager extends ProductFileManager {
+
+    public ProductSegmentManager() {
+        this(loadConfig());
+    }
+
+    private ProductSegmentManager(ResourceBundle config) {
+        super(config, new SegmentProductStore(config));
+    }
+}
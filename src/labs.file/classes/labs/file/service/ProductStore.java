@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2023 bhagc
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.file.service;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntUnaryOperator;
+import labs.pm.data.Product;
+import labs.pm.data.Review;
+
+/**
+ * Persistent storage of products and their reviews used by
+ * {@link ProductFileManager}.
+ * <br>
+ * Callers serialize writes and reads of reviews of the same product, calls for
+ * different products may run in parallel.
+ *
+ * @author bhagc
+ */
+interface ProductStore {
+
+    Map<Product, List<Review>> loadAll() throws IOException;
+
+    List<Review> loadReviews(int id) throws IOException;
+
+    /**
+     * Reads the records written after a position returned by
+     * {@link #position()}, in the order they were written
+     *
+     * @param position store position of a snapshot
+     * @param known number of reviews of a product the snapshot already holds,
+     * for layouts that cannot tell which reviews came after the position
+     * @return records to apply on top of the snapshot
+     * @throws IOException if the store cannot be read from that position
+     */
+    List<StoreRecord> loadSince(long position, IntUnaryOperator known) throws IOException;
+
+    /**
+     * Discards the records written after a position returned by
+     * {@link #position()}, so the records of a {@link WriteAheadLog} written
+     * after a checkpoint at that position can be written again
+     *
+     * @param position store position of a checkpoint
+     * @throws IOException if the records cannot be discarded
+     */
+    void rollback(long position) throws IOException;
+
+    /**
+     * Forces all records written so far to the storage device, called at a
+     * checkpoint before the write-ahead log it covers is deleted
+     *
+     * @throws IOException if the records cannot be forced
+     */
+    void sync() throws IOException;
+
+    /**
+     * @return position after the last written record, called while no
+     * writes are in progress
+     * @throws IOException if the position cannot be read
+     */
+    long position() throws IOException;
+
+    /**
+     * Called once a snapshot at a position is written, records before it are
+     * no longer read by {@link #loadSince(long, IntUnaryOperator) loadSince}
+     * or {@link #rollback(long) rollback}
+     *
+     * @param position store position of the snapshot
+     * @throws IOException if data kept for older positions cannot be deleted
+     */
+    default void checkpoint(long position) throws IOException {
+    }
+
+    /**
+     * @return lookup data kept with a snapshot so it is not rebuilt by
+     * scanning the store, called while no writes are in progress
+     */
+    default byte[] index() {
+        return new byte[0];
+    }
+
+    /**
+     * Restores lookup data saved by {@link #index()}, called before
+     * {@link #loadSince(long, IntUnaryOperator) loadSince}
+     *
+     * @param index saved lookup data
+     * @throws IOException if the data is not valid
+     */
+    default void loadIndex(ByteBuffer index) throws IOException {
+    }
+
+    /**
+     * @return file the catalog snapshot of this store is kept in
+     */
+    Path snapshotFile();
+
+    /**
+     * Writes a batch of records with as few I/O operations as the layout
+     * allows, records of the same product keep their order
+     *
+     * @param records products and reviews to write
+     * @param force whether to force the written data to the storage device
+     * @throws IOException if the batch could not be written
+     */
+    void write(List<StoreRecord> records, boolean force) throws IOException;
+
+    default void addProduct(Product product) throws IOException {
+        write(List.of(StoreRecord.of(product)), false);
+    }
+
+    default void addReview(int id, Review review) throws IOException {
+        write(List.of(StoreRecord.of(id, review)), false);
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2023 bhagc
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.file.service;
+
+import labs.pm.data.Rating;
+import labs.pm.service.ProductQuery;
+
+/**
+ * Chooses how a {@link ProductQuery} reads the catalog.
+ * <br>
+ * The cost of a path is the number of products it visits. An id is looked up
+ * directly, otherwise the index with the fewest products matching its
+ * condition is used, counting stops once an index is no better than the best
+ * path found so far. A query without a selective condition scans the catalog,
+ * in parallel when it holds at least {@code query.parallel.threshold}
+ * products.
+ *
+ * @author bhagc
+ */
+class QueryPlanner {
+
+    /**
+     * Ways of reading the products of a query
+     */
+    enum Access {
+        ID, RATING_INDEX, PRICE_RANGE, BEST_BEFORE_RANGE, SCAN, PARALLEL_SCAN
+    }
+
+    /**
+     * @param access chosen access path
+     * @param cost number of products the path visits
+     */
+    record Plan(Access access, int cost) {
+
+    }
+
+    private final int parallelThreshold;
+
+    QueryPlanner(int parallelThreshold) {
+        this.parallelThreshold = parallelThreshold;
+    }
+
+    /**
+     * Plans a query, called under the read lock of the indexes
+     *
+     * @param query query to plan
+     * @param indexes secondary indexes of the catalog
+     * @param size number of products in the catalog
+     * @return cheapest access path
+     */
+    Plan plan(ProductQuery query, SecondaryIndexes indexes, int size) {
+        if (query.getId() != null) {
+            return new Plan(Access.ID, 1);
+        }
+        Plan best = new Plan(size >= parallelThreshold ? Access.PARALLEL_SCAN : Access.SCAN, size);
+        if (query.getMinRating() != Rating.NO_STAR || query.getMaxRating() != Rating.FIVE_STAR) {
+            best = cheaper(best, Access.RATING_INDEX,
+                    indexes.countRated(query.getMinRating(), query.getMaxRating()));
+        }
+        if (query.getMinPrice() != null || query.getMaxPrice() != null) {
+            best = cheaper(best, Access.PRICE_RANGE,
+                    indexes.countPricedBetween(query.getMinPrice(), query.getMaxPrice(), best.cost()));
+        }
+        if (query.getBestBefore() != null) {
+            best = cheaper(best, Access.BEST_BEFORE_RANGE,
+                    indexes.countBestBefore(query.getBestBefore(), best.cost()));
+        }
+        return best;
+    }
+
+    private static Plan cheaper(Plan best, Access access, int cost) {
+        return cost < best.cost() ? new Plan(access, cost) : best;
+    }
+}
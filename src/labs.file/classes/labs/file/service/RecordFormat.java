@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2023 bhagc
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.file.service;
+
+import java.math.BigDecimal;
+import java.text.MessageFormat;
+import java.text.ParseException;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.ResourceBundle;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import labs.pm.data.Drink;
+import labs.pm.data.Food;
+import labs.pm.data.Product;
+import labs.pm.data.Rateable;
+import labs.pm.data.Rating;
+import labs.pm.data.Review;
+
+/**
+ * Text form of product and review records shared by the product stores.
+ * <br>
+ * {@link MessageFormat} is not thread safe, each thread parses with its own
+ * copy so records can be parsed in parallel.
+ *
+ * @author bhagc
+ */
+class RecordFormat {
+
+    private static final Logger logger = Logger.getLogger(RecordFormat.class.getName());
+    private final ThreadLocal<MessageFormat> reviewFormat;
+    private final ThreadLocal<MessageFormat> productFormat;
+
+    RecordFormat(ResourceBundle config) {
+        String reviewPattern = config.getString("review.data.format");
+        String productPattern = config.getString("product.data.format");
+        reviewFormat = ThreadLocal.withInitial(() -> new MessageFormat(reviewPattern));
+        productFormat = ThreadLocal.withInitial(() -> new MessageFormat(productPattern));
+    }
+
+    String formatProduct(Product product) {
+        String type = product instanceof Food ? "F," : "D,";
+        return type
+                + product.getId()
+                + "," + product.getName()
+                + "," + product.getPrice().toString()
+                + "," + product.getRating().ordinal() + "," + product.getBestBefore();
+    }
+
+    String formatReview(Review review) {
+        return review.getRating().ordinal() + "," + review.getComments();
+    }
+
+    Review parseReview(String text) {
+        Review review = null;
+        try {
+            Object[] values = reviewFormat.get().parse(text);
+            review = new Review(Rateable.convert(Integer.parseInt((String) values[0])),
+                    (String) values[1]);
+        } catch (ParseException ex) {
+            logger.log(Level.WARNING, "Error in parsing Review " + text, ex.getMessage());
+        } catch (NumberFormatException ex) {
+            logger.log(Level.WARNING, "Error in parsing Wrong Type Data " + text, ex.getMessage());
+        }
+        return review;
+    }
+
+    Product parseProduct(String text) {
+        Product product = null;
+        try {
+            Object[] values = productFormat.get().parse(text);
+            int id = Integer.parseInt((String) values[1]);
+            String name = (String) values[2];
+            BigDecimal price = new BigDecimal((String) values[3]);
+            Rating rating = Rating.values()[Integer.parseInt((String) values[4])];
+            switch ((String) values[0]) {
+                case "D" ->
+                    product = new Drink(id, name, price, rating);
+                case "F" -> {
+                    LocalDate bestBefore = LocalDate.parse((String) values[5]);
+                    product = new Food(id, name, price, rating, bestBefore);
+                }
+            }
+        } catch (ParseException | NumberFormatException | DateTimeParseException ex) {
+            logger.log(Level.WARNING, "Error in parsing Product {0}", text);
+        }
+        return product;
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2023 bhagc
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.file.service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import labs.pm.data.Rating;
+import labs.pm.data.Review;
+
+/**
+ * Size bounded cache of product reviews.
+ * <br>
+ * Keeps the review lists of at most {@code capacity} products and evicts the
+ * least recently used one when full. Hits, misses and evictions are counted.
+ * <br>
+ * A cached review is its rating and the id of its comment in a
+ * {@link CommentStore} of the cache, the comment is looked up when the
+ * reviews are read. Comments of evicted products stay in the store until it
+ * holds twice as many comments as the cached reviews, then the cached
+ * comments are copied to a new store.
+ *
+ * @author bhagc
+ */
+class ReviewCache {
+
+    private static final Rating[] RATINGS = Rating.values();
+    private final int capacity;
+    private final Map<Integer, Reviews> reviews;
+    private CommentStore comments = new CommentStore();
+    private long cachedReviews;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * Ratings and comment ids of the cached reviews of a product
+     */
+    private static final class Reviews {
+
+        private byte[] ratings;
+        private int[] comments;
+        private int size;
+
+        Reviews(int capacity) {
+            ratings = new byte[capacity];
+            comments = new int[capacity];
+        }
+
+        void add(Rating rating, int comment) {
+            if (size == ratings.length) {
+                ratings = Arrays.copyOf(ratings, Math.max(4, size * 2));
+                comments = Arrays.copyOf(comments, ratings.length);
+            }
+            ratings[size] = (byte) rating.ordinal();
+            comments[size++] = comment;
+        }
+    }
+
+    ReviewCache(int capacity) {
+        this.capacity = capacity;
+        this.reviews = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, Reviews> eldest) {
+                if (size() > ReviewCache.this.capacity) {
+                    evictions++;
+                    cachedReviews -= eldest.getValue().size;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * @param id product id
+     * @return copy of the cached reviews or null when the product is not cached
+     */
+    synchronized List<Review> get(int id) {
+        Reviews cached = reviews.get(id);
+        if (cached == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        List<Review> list = new ArrayList<>(cached.size);
+        for (int i = 0; i < cached.size; i++) {
+            list.add(new Review(RATINGS[cached.ratings[i]], comments.get(cached.comments[i])));
+        }
+        return list;
+    }
+
+    synchronized void put(int id, List<Review> list) {
+        Reviews cached = new Reviews(list.size());
+        for (Review review : list) {
+            cached.add(review.getRating(), comments.add(review.getComments()));
+        }
+        Reviews replaced = reviews.put(id, cached);
+        cachedReviews += cached.size - (replaced == null ? 0 : replaced.size);
+        compact();
+    }
+
+    /**
+     * Adds a new review to the cached reviews of a product, a product that is
+     * not cached is left to be loaded on its next read
+     *
+     * @param id product id
+     * @param review new review
+     */
+    synchronized void add(int id, Review review) {
+        Reviews cached = reviews.get(id);
+        if (cached != null) {
+            cached.add(review.getRating(), comments.add(review.getComments()));
+            cachedReviews++;
+        }
+    }
+
+    /**
+     * Adds new reviews to the cached reviews of a product like
+     * {@link #add(int, Review)}
+     */
+    synchronized void addAll(int id, List<Review> added) {
+        Reviews cached = reviews.get(id);
+        if (cached != null) {
+            for (Review review : added) {
+                cached.add(review.getRating(), comments.add(review.getComments()));
+            }
+            cachedReviews += added.size();
+        }
+    }
+
+    synchronized boolean isFull() {
+        return reviews.size() >= capacity;
+    }
+
+    synchronized long getHits() {
+        return hits;
+    }
+
+    synchronized long getMisses() {
+        return misses;
+    }
+
+    synchronized long getEvictions() {
+        return evictions;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ReviewCache{" + "size=" + reviews.size() + ", capacity=" + capacity
+                + ", hits=" + hits + ", misses=" + misses + ", evictions=" + evictions + '}';
+    }
+
+    /**
+     * Copies the comments of the cached reviews to a new store once the store
+     * holds more than twice as many comments, so comments of evicted products
+     * do not pile up
+     */
+    private void compact() {
+        if (comments.size() <= 2 * cachedReviews + CommentStore.BLOCK_SIZE) {
+            return;
+        }
+        CommentStore compacted = new CommentStore();
+        for (Reviews cached : reviews.values()) {
+            for (int i = 0; i < cached.size; i++) {
+                cached.comments[i] = compacted.add(comments.get(cached.comments[i]));
+            }
+        }
+        comments = compacted;
+    }
+}
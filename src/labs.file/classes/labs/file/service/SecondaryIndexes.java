@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2023 bhagc
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.file.service;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import labs.pm.data.Food;
+import labs.pm.data.Product;
+import labs.pm.data.Rating;
+
+/**
+ * Indexes of products by rating, price and best before date.
+ * <br>
+ * Products are kept in one bucket per {@link Rating} and in sorted maps keyed
+ * by price and, for Food, by best before date, so a query visits only the
+ * matching products. Not thread safe, callers guard it with the same lock as
+ * the product map.
+ *
+ * @author bhagc
+ */
+class SecondaryIndexes {
+
+    private static final Rating[] RATINGS = Rating.values();
+    private final List<Set<Product>> byRating = new ArrayList<>(RATINGS.length);
+    private final NavigableMap<BigDecimal, Set<Product>> byPrice = new TreeMap<>();
+    private final NavigableMap<LocalDate, Set<Product>> byBestBefore = new TreeMap<>();
+
+    SecondaryIndexes() {
+        for (Rating rating : RATINGS) {
+            byRating.add(new HashSet<>());
+        }
+    }
+
+    void add(Product product) {
+        byRating.get(product.getRating().ordinal()).add(product);
+        byPrice.computeIfAbsent(product.getPrice(), k -> new HashSet<>()).add(product);
+        if (product instanceof Food) {
+            byBestBefore.computeIfAbsent(product.getBestBefore(), k -> new HashSet<>()).add(product);
+        }
+    }
+
+    void remove(Product product) {
+        byRating.get(product.getRating().ordinal()).remove(product);
+        remove(byPrice, product.getPrice(), product);
+        if (product instanceof Food) {
+            remove(byBestBefore, product.getBestBefore(), product);
+        }
+    }
+
+    /**
+     * @param rating lowest rating
+     * @return products rated at least the given rating
+     */
+    List<Product> ratedAtLeast(Rating rating) {
+        return rated(rating, Rating.FIVE_STAR);
+    }
+
+    /**
+     * @param from lowest rating, inclusive
+     * @param to highest rating, inclusive
+     * @return products rated in the range
+     */
+    List<Product> rated(Rating from, Rating to) {
+        List<Product> result = new ArrayList<>();
+        for (int i = from.ordinal(); i <= to.ordinal(); i++) {
+            result.addAll(byRating.get(i));
+        }
+        return result;
+    }
+
+    int countRated(Rating from, Rating to) {
+        int count = 0;
+        for (int i = from.ordinal(); i <= to.ordinal(); i++) {
+            count += byRating.get(i).size();
+        }
+        return count;
+    }
+
+    /**
+     * @param from lowest price, inclusive, or null for no lower bound
+     * @param to highest price, exclusive, or null for no upper bound
+     * @return products priced in the range
+     */
+    List<Product> pricedBetween(BigDecimal from, BigDecimal to) {
+        List<Product> result = new ArrayList<>();
+        priceRange(from, to).values().forEach(result::addAll);
+        return result;
+    }
+
+    /**
+     * Counts products priced in a range, stops counting above a limit
+     *
+     * @return number of products or a number above the limit
+     */
+    int countPricedBetween(BigDecimal from, BigDecimal to, int limit) {
+        return count(priceRange(from, to), limit);
+    }
+
+    /**
+     * @param date first date the products are not good for
+     * @return Food with a best before date before the given date
+     */
+    List<Product> bestBefore(LocalDate date) {
+        List<Product> result = new ArrayList<>();
+        byBestBefore.headMap(date, false).values().forEach(result::addAll);
+        return result;
+    }
+
+    int countBestBefore(LocalDate date, int limit) {
+        return count(byBestBefore.headMap(date, false), limit);
+    }
+
+    private NavigableMap<BigDecimal, Set<Product>> priceRange(BigDecimal from, BigDecimal to) {
+        if (from != null && to != null) {
+            return from.compareTo(to) < 0 ? byPrice.subMap(from, true, to, false) : new TreeMap<>();
+        } else if (from != null) {
+            return byPrice.tailMap(from, true);
+        } else if (to != null) {
+            return byPrice.headMap(to, false);
+        }
+        return byPrice;
+    }
+
+    private static int count(NavigableMap<?, Set<Product>> range, int limit) {
+        int count = 0;
+        for (Set<Product> products : range.values()) {
+            count += products.size();
+            if (count > limit) {
+                break;
+            }
+        }
+        return count;
+    }
+
+    private static <K> void remove(NavigableMap<K, Set<Product>> index, K key, Product product) {
+        Set<Product> products = index.get(key);
+        if (products != null && products.remove(product) && products.isEmpty()) {
+            index.remove(key);
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2023 bhagc
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.file.service;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.ResourceBundle;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import labs.pm.data.Product;
+import labs.pm.data.Review;
+
+/**
+ * Imports the {@code product{id}.csv}/{@code reviews{id}.csv} layout of
+ * {@code data.folder} into the segment files of {@code segment.folder}.
+ * <br>
+ * Run with {@code java -p <modules> -m labs.file/labs.file.service.SegmentMigration}.
+ * The import is refused when segment files already exist. Records are
+ * written in batches of {@code import.batch.size} and forced to disk at the
+ * end.
+ *
+ * @author bhagc
+ */
+public class SegmentMigration {
+
+    private static final Logger logger = Logger.getLogger(SegmentMigration.class.getName());
+
+    public static void main(String[] args) {
+        ResourceBundle config = ProductFileManager.loadConfig();
+        try (SegmentProductStore target = new SegmentProductStore(config)) {
+            if (!target.isEmpty()) {
+                logger.log(Level.SEVERE, "Segment folder {0} already contains data",
+                        config.getString("segment.folder"));
+                return;
+            }
+            Map<Product, List<Review>> products = new CsvProductStore(config).loadAll();
+            int batchSize = Math.max(1, Integer.parseInt(config.getString("import.batch.size")));
+            List<StoreRecord> batch = new ArrayList<>(batchSize);
+            int reviewCount = 0;
+            for (Map.Entry<Product, List<Review>> entry : products.entrySet()) {
+                batch.add(StoreRecord.of(entry.getKey()));
+                for (Review review : entry.getValue()) {
+                    batch.add(StoreRecord.of(entry.getKey().getId(), review));
+                    reviewCount++;
+                }
+                if (batch.size() >= batchSize) {
+                    target.write(batch, false);
+                    batch.clear();
+                }
+            }
+            target.write(batch, false);
+            target.sync();
+            logger.log(Level.INFO, "Migrated {0} products and {1} reviews",
+                    new Object[]{products.size(), reviewCount});
+        } catch (IOException ex) {
+            logger.log(Level.SEVERE, "Error migrating data", ex);
+        }
+    }
+}
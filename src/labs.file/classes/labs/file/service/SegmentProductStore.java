@@ -0,0 +1,474 @@
+/*
+ * Copyright (C) 2023 bhagc
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.file.service;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.ResourceBundle;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.function.IntUnaryOperator;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import labs.pm.data.Product;
+import labs.pm.data.Review;
+
+/**
+ * Appends product and review records to a few rolling segment files instead
+ * of one file per product.
+ * <br>
+ * Every record is one line, {@code P,<product>} or {@code R,<id>,<review>}.
+ * A segment is closed and the next one started once it reaches
+ * {@code segment.max.size} bytes. The position of each review record is kept
+ * in an offset index, so reviews of a single product are read back without
+ * scanning the segments. The index holds a growing array of primitive
+ * positions per product, so positions are not boxed.
+ * <br>
+ * Appends go to a single open segment and are serialized on this store, a
+ * batch of records is written with one write per segment.
+ *
+ * @author bhagc
+ */
+class SegmentProductStore implements ProductStore, Closeable {
+
+    private static final int OFFSET_BITS = 40;
+    private static final long OFFSET_MASK = (1L << OFFSET_BITS) - 1;
+    private final ResourceBundle config;
+    private final RecordFormat format;
+    private final Path segmentFolder;
+    private final long maxSegmentSize;
+    private final Pattern segmentName;
+    private final IntMap<Offsets> reviewOffsets = new IntMap<>();
+    private final Map<Integer, FileChannel> readers = new HashMap<>();
+    private final Set<Integer> unsynced = new HashSet<>();
+    private FileChannel writer;
+    private int segment;
+    private long segmentSize;
+    private static final Logger logger = Logger.getLogger(SegmentProductStore.class.getName());
+
+    SegmentProductStore(ResourceBundle config) {
+        this.config = config;
+        this.format = new RecordFormat(config);
+        this.segmentFolder = Path.of(config.getString("segment.folder"));
+        this.maxSegmentSize = Long.parseLong(config.getString("segment.max.size"));
+        String[] name = config.getString("segment.file").split("\\{0\\}");
+        this.segmentName = Pattern.compile(Pattern.quote(name[0]) + "(\\d+)"
+                + (name.length > 1 ? Pattern.quote(name[1]) : ""));
+    }
+
+    @Override
+    public Map<Product, List<Review>> loadAll() throws IOException {
+        Map<Integer, Product> products = new HashMap<>();
+        Map<Integer, List<Review>> reviews = new HashMap<>();
+        reviewOffsets.clear();
+        loadFrom(0, record -> {
+            if (record.product() != null) {
+                products.put(record.id(), record.product());
+            } else {
+                reviews.computeIfAbsent(record.id(), k -> new ArrayList<>()).add(record.review());
+            }
+        });
+        reviews.keySet().removeIf(id -> {
+            if (!products.containsKey(id)) {
+                logger.log(Level.WARNING, "Dropping reviews of unknown product {0}", id);
+                return true;
+            }
+            return false;
+        });
+        return products.values().stream()
+                .collect(Collectors.toMap(product -> product,
+                        product -> reviews.getOrDefault(product.getId(), new ArrayList<>())));
+    }
+
+    /**
+     * Reads the segments from the position on, every record there was
+     * appended after the snapshot
+     */
+    @Override
+    public List<StoreRecord> loadSince(long position, IntUnaryOperator known) throws IOException {
+        Path file = segmentFile((int) (position >>> OFFSET_BITS));
+        if (position != 0 && (Files.notExists(file) || Files.size(file) < (position & OFFSET_MASK))) {
+            throw new IOException("Segments end before the snapshot position");
+        }
+        List<StoreRecord> records = new ArrayList<>();
+        loadFrom(position, records::add);
+        return records;
+    }
+
+    /**
+     * Cuts the segment of the position there and deletes later segments, the
+     * review offsets restored from a snapshot end at the position
+     */
+    @Override
+    public synchronized void rollback(long position) throws IOException {
+        int number = (int) (position >>> OFFSET_BITS);
+        long offset = position & OFFSET_MASK;
+        Path file = segmentFile(number);
+        if (position != 0 && (Files.notExists(file) || Files.size(file) < offset)) {
+            throw new IOException("Segments end before the snapshot position");
+        }
+        close();
+        for (int later : listSegments()) {
+            if (later > number) {
+                Files.delete(segmentFile(later));
+            }
+        }
+        if (Files.exists(file)) {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                channel.truncate(offset);
+            }
+        }
+        unsynced.removeIf(later -> later > number);
+        segment = number;
+        segmentSize = offset;
+    }
+
+    /**
+     * Forces the open segment and the segments closed since the last call
+     */
+    @Override
+    public synchronized void sync() throws IOException {
+        for (int number : unsynced) {
+            if (writer != null && number == segment) {
+                writer.force(false);
+            } else if (Files.exists(segmentFile(number))) {
+                try (FileChannel channel = FileChannel.open(segmentFile(number), StandardOpenOption.WRITE)) {
+                    channel.force(false);
+                }
+            }
+        }
+        unsynced.clear();
+    }
+
+    @Override
+    public synchronized long position() {
+        return pack(segment, segmentSize);
+    }
+
+    /**
+     * The index holds the review offsets, for each product its id, the
+     * number of offsets and the offsets
+     */
+    @Override
+    public synchronized byte[] index() {
+        long[] count = new long[1];
+        reviewOffsets.forEach((offsets, id) -> count[0] += offsets.size());
+        ByteBuffer index = ByteBuffer.allocate(Math.toIntExact(4 + reviewOffsets.size() * 8L + count[0] * 8));
+        index.putInt(reviewOffsets.size());
+        reviewOffsets.forEach((offsets, id) -> {
+            index.putInt(id);
+            index.putInt(offsets.size());
+            for (int i = 0; i < offsets.size(); i++) {
+                index.putLong(offsets.get(i));
+            }
+        });
+        return index.array();
+    }
+
+    @Override
+    public synchronized void loadIndex(ByteBuffer index) throws IOException {
+        try {
+            reviewOffsets.clear();
+            for (int products = index.getInt(); products > 0; products--) {
+                int id = index.getInt();
+                int count = index.getInt();
+                if (count < 0) {
+                    throw new IOException("Invalid review count " + count);
+                }
+                Offsets offsets = new Offsets(Math.min(count, index.remaining() / 8));
+                for (int i = 0; i < count; i++) {
+                    offsets.add(index.getLong());
+                }
+                reviewOffsets.put(id, offsets);
+            }
+        } catch (BufferUnderflowException ex) {
+            reviewOffsets.clear();
+            throw new IOException("Incomplete review index");
+        }
+    }
+
+    @Override
+    public Path snapshotFile() {
+        return segmentFolder.resolve(config.getString("snapshot.file"));
+    }
+
+    @Override
+    public List<Review> loadReviews(int id) throws IOException {
+        long[] positions;
+        synchronized (this) {
+            Offsets offsets = reviewOffsets.get(id);
+            positions = offsets == null ? new long[0] : offsets.toArray();
+        }
+        List<Review> reviews = new ArrayList<>();
+        for (long position : positions) {
+            String record = readRecord(position);
+            Review review = format.parseReview(record.substring(record.indexOf(',', 2) + 1));
+            if (review != null) {
+                reviews.add(review);
+            }
+        }
+        return reviews;
+    }
+
+    /**
+     * Appends the whole batch with one write per segment it spans
+     */
+    @Override
+    public synchronized void write(List<StoreRecord> records, boolean force) throws IOException {
+        ByteArrayOutputStream batch = new ByteArrayOutputStream(records.size() * 64);
+        int[] ids = new int[records.size()];
+        long[] positions = new long[records.size()];
+        int reviewCount = 0;
+        for (StoreRecord record : records) {
+            byte[] bytes = ((record.product() != null
+                    ? "P," + format.formatProduct(record.product())
+                    : "R," + record.id() + "," + format.formatReview(record.review()))
+                    + "\n").getBytes(StandardCharsets.UTF_8);
+            long size = segmentSize + batch.size();
+            if (size > 0 && size + bytes.length > maxSegmentSize) {
+                flush(batch, force);
+                writer.close();
+                writer = null;
+                segment++;
+                segmentSize = 0;
+            }
+            if (record.review() != null) {
+                ids[reviewCount] = record.id();
+                positions[reviewCount++] = pack(segment, segmentSize + batch.size());
+            }
+            batch.write(bytes);
+        }
+        flush(batch, force);
+        for (int i = 0; i < reviewCount; i++) {
+            offsets(ids[i]).add(positions[i]);
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (writer != null) {
+            writer.close();
+            writer = null;
+        }
+        for (FileChannel reader : readers.values()) {
+            reader.close();
+        }
+        readers.clear();
+    }
+
+    boolean isEmpty() throws IOException {
+        return listSegments().isEmpty();
+    }
+
+    private void flush(ByteArrayOutputStream batch, boolean force) throws IOException {
+        if (writer == null) {
+            Files.createDirectories(segmentFolder);
+            writer = FileChannel.open(segmentFile(segment),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            writer.position(segmentSize);
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(batch.toByteArray());
+        while (buffer.hasRemaining()) {
+            writer.write(buffer);
+        }
+        if (force) {
+            writer.force(false);
+        } else {
+            unsynced.add(segment);
+        }
+        segmentSize += batch.size();
+        batch.reset();
+    }
+
+    private String readRecord(long packed) throws IOException {
+        int number = (int) (packed >>> OFFSET_BITS);
+        long position = packed & OFFSET_MASK;
+        FileChannel reader = reader(number);
+        ByteArrayOutputStream record = new ByteArrayOutputStream(128);
+        ByteBuffer buffer = ByteBuffer.allocate(256);
+        while (reader.read(buffer, position) > 0) {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                byte b = buffer.get();
+                if (b == '\n') {
+                    return record.toString(StandardCharsets.UTF_8);
+                }
+                record.write(b);
+            }
+            position += buffer.limit();
+            buffer.clear();
+        }
+        return record.toString(StandardCharsets.UTF_8);
+    }
+
+    private synchronized FileChannel reader(int number) throws IOException {
+        FileChannel reader = readers.get(number);
+        if (reader == null) {
+            reader = FileChannel.open(segmentFile(number), StandardOpenOption.READ);
+            readers.put(number, reader);
+        }
+        return reader;
+    }
+
+    private void loadFrom(long position, Consumer<StoreRecord> records) throws IOException {
+        int first = (int) (position >>> OFFSET_BITS);
+        for (int number : listSegments()) {
+            if (number < first) {
+                continue;
+            }
+            long end = loadSegment(number, number == first ? position & OFFSET_MASK : 0, records);
+            Path file = segmentFile(number);
+            if (end < Files.size(file)) {
+                logger.log(Level.WARNING, "Truncating incomplete record at the end of {0}", file);
+                try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                    channel.truncate(end);
+                }
+            }
+            segment = number;
+            segmentSize = end;
+        }
+    }
+
+    private long loadSegment(int number, long from, Consumer<StoreRecord> records) throws IOException {
+        long position = from;
+        long start = from;
+        ByteArrayOutputStream line = new ByteArrayOutputStream(256);
+        try (InputStream in = new BufferedInputStream(
+                Files.newInputStream(segmentFile(number)), 1 << 16)) {
+            in.skipNBytes(from);
+            int b;
+            while ((b = in.read()) != -1) {
+                position++;
+                if (b != '\n') {
+                    line.write(b);
+                    continue;
+                }
+                String record = line.toString(StandardCharsets.UTF_8);
+                line.reset();
+                if (record.startsWith("P,")) {
+                    Product product = format.parseProduct(record.substring(2));
+                    if (product != null) {
+                        records.accept(StoreRecord.of(product));
+                    }
+                } else if (record.startsWith("R,")) {
+                    int comma = record.indexOf(',', 2);
+                    try {
+                        int id = Integer.parseInt(record.substring(2, comma));
+                        Review review = format.parseReview(record.substring(comma + 1));
+                        if (review != null) {
+                            records.accept(StoreRecord.of(id, review));
+                            offsets(id).add(pack(number, start));
+                        }
+                    } catch (NumberFormatException | StringIndexOutOfBoundsException ex) {
+                        logger.log(Level.WARNING, "Error in parsing Review record {0}", record);
+                    }
+                } else {
+                    logger.log(Level.WARNING, "Unknown record {0}", record);
+                }
+                start = position;
+            }
+        }
+        return start;
+    }
+
+    private Offsets offsets(int id) {
+        Offsets offsets = reviewOffsets.get(id);
+        if (offsets == null) {
+            offsets = new Offsets(4);
+            reviewOffsets.put(id, offsets);
+        }
+        return offsets;
+    }
+
+    private List<Integer> listSegments() throws IOException {
+        if (Files.notExists(segmentFolder)) {
+            return List.of();
+        }
+        try (Stream<Path> files = Files.list(segmentFolder)) {
+            return files
+                    .map(path -> segmentName.matcher(path.getFileName().toString()))
+                    .filter(Matcher::matches)
+                    .map(matcher -> Integer.parseInt(matcher.group(1)))
+                    .sorted(Comparator.naturalOrder())
+                    .collect(Collectors.toList());
+        }
+    }
+
+    private Path segmentFile(int number) {
+        return segmentFolder.resolve(
+                MessageFormat.format(config.getString("segment.file"), String.valueOf(number)));
+    }
+
+    private static long pack(int segment, long offset) {
+        return ((long) segment << OFFSET_BITS) | offset;
+    }
+
+    /**
+     * Positions of the review records of one product in the order they were
+     * appended
+     */
+    private static final class Offsets {
+
+        private long[] positions;
+        private int size;
+
+        Offsets(int capacity) {
+            positions = new long[Math.max(capacity, 1)];
+        }
+
+        void add(long position) {
+            if (size == positions.length) {
+                positions = Arrays.copyOf(positions, size * 2);
+            }
+            positions[size++] = position;
+        }
+
+        long get(int i) {
+            return positions[i];
+        }
+
+        int size() {
+            return size;
+        }
+
+        long[] toArray() {
+            return Arrays.copyOf(positions, size);
+        }
+    }
+}
@@ -0,0 +1,360 @@
+/*
+ * Copyright (C) 2023 bhagc
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.file.service;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedOutputStream;
+import labs.pm.data.Drink;
+import labs.pm.data.Food;
+import labs.pm.data.Product;
+import labs.pm.data.Rating;
+import labs.pm.data.RatingSummary;
+
+/**
+ * Binary snapshot of the catalog, read back memory mapped instead of parsing
+ * the store.
+ * <br>
+ * Layout: a header with the store position and the sequence number of the
+ * last {@link WriteAheadLog} record the snapshot was taken at, the ids of the
+ * products in ascending order, one fixed width record per product in the
+ * same order, a block of the variable length values, the number of products
+ * and the sum of their discounts per rating, the store index and a CRC32C of
+ * all of it. A product record holds the id, type, rating, scale of the
+ * price, the offset of its values and length of its name, best before as
+ * epoch day and the review count per rating. The values of a product are the
+ * unscaled price as the length prefixed bytes of
+ * {@link BigInteger#toByteArray()}, so a price of any size can be written,
+ * and the UTF-8 name.
+ * <br>
+ * Reading a snapshot checks its checksum and decodes nothing else, a product
+ * is found by a binary search of the ids and decoded from its record when it
+ * is asked for. A snapshot is written to a temporary file and renamed over
+ * the previous one, so a crash never leaves a partial snapshot behind. A
+ * snapshot of another version is not read, the catalog is loaded from the
+ * store and a new snapshot written.
+ *
+ * @author bhagc
+ */
+class SnapshotFile {
+
+    private static final int MAGIC = 0x504D5331;
+    private static final int VERSION = 4;
+    private static final int HEADER_SIZE = 40;
+    private static final int RECORD_SIZE = 24 + 4 * Rating.values().length;
+    private static final int NO_DATE = Integer.MIN_VALUE;
+    private static final Rating[] RATINGS = Rating.values();
+
+    private SnapshotFile() {
+    }
+
+    /**
+     * Contents of a snapshot, decoded on demand from the mapped file. Reads
+     * use absolute positions only, so an image is read by any number of
+     * threads.
+     */
+    static class Image {
+
+        private final ByteBuffer buffer;
+        private final long position;
+        private final long sequence;
+        private final int size;
+        private final int recordsStart;
+        private final int valuesStart;
+        private final int[] ratingCounts = new int[RATINGS.length];
+        private final Map<Rating, BigDecimal> discounts = new EnumMap<>(Rating.class);
+        private final ByteBuffer storeIndex;
+
+        private Image(ByteBuffer buffer) throws IOException {
+            this.buffer = buffer;
+            if (buffer.limit() < HEADER_SIZE + Integer.BYTES
+                    || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+                throw new IOException("Unknown snapshot format");
+            }
+            this.position = buffer.getLong(8);
+            this.sequence = buffer.getLong(16);
+            this.size = buffer.getInt(24);
+            int valuesSize = buffer.getInt(28);
+            int totalsSize = buffer.getInt(32);
+            this.recordsStart = HEADER_SIZE + size * Integer.BYTES;
+            this.valuesStart = recordsStart + size * RECORD_SIZE;
+            int totalsStart = valuesStart + valuesSize;
+            int indexStart = totalsStart + totalsSize;
+            int end = buffer.limit() - Integer.BYTES;
+            if (size < 0 || valuesSize < 0 || totalsSize < 0 || indexStart > end) {
+                throw new IOException("Truncated snapshot");
+            }
+            CRC32C crc = new CRC32C();
+            crc.update(buffer.duplicate().position(0).limit(end));
+            if ((int) crc.getValue() != buffer.getInt(end)) {
+                throw new IOException("Snapshot checksum mismatch");
+            }
+            int at = totalsStart;
+            for (Rating rating : RATINGS) {
+                ratingCounts[rating.ordinal()] = buffer.getInt(at);
+                int scale = buffer.getInt(at + 4);
+                byte[] unscaled = new byte[buffer.getInt(at + 8)];
+                buffer.get(at + 12, unscaled);
+                at += 12 + unscaled.length;
+                if (ratingCounts[rating.ordinal()] > 0) {
+                    discounts.put(rating, new BigDecimal(new BigInteger(unscaled), scale));
+                }
+            }
+            this.storeIndex = buffer.duplicate().position(indexStart).limit(end).slice();
+        }
+
+        /**
+         * @return store position the snapshot was taken at
+         */
+        long position() {
+            return position;
+        }
+
+        /**
+         * @return sequence number of the last log record the snapshot holds
+         */
+        long sequence() {
+            return sequence;
+        }
+
+        int size() {
+            return size;
+        }
+
+        /**
+         * @return number of the record of a product or -1 when the snapshot
+         * does not hold it
+         */
+        int indexOf(int id) {
+            int low = 0;
+            int high = size - 1;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                int found = id(middle);
+                if (found < id) {
+                    low = middle + 1;
+                } else if (found > id) {
+                    high = middle - 1;
+                } else {
+                    return middle;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * @return id of the product of a record
+         */
+        int id(int i) {
+            return buffer.getInt(HEADER_SIZE + i * Integer.BYTES);
+        }
+
+        /**
+         * @return product of a record, its version is 1 plus its number of
+         * reviews
+         */
+        Product product(int i) {
+            int at = recordsStart + i * RECORD_SIZE;
+            int id = buffer.getInt(at);
+            Rating rating = RATINGS[buffer.get(at + 5)];
+            int values = valuesStart + buffer.getInt(at + 12);
+            byte[] unscaled = new byte[buffer.getInt(values)];
+            buffer.get(values + Integer.BYTES, unscaled);
+            BigDecimal price = new BigDecimal(new BigInteger(unscaled), buffer.getInt(at + 8));
+            byte[] name = new byte[buffer.getInt(at + 16)];
+            buffer.get(values + Integer.BYTES + unscaled.length, name);
+            int bestBefore = buffer.getInt(at + 20);
+            Product product = buffer.get(at + 4) == 'F'
+                    ? new Food(id, new String(name, StandardCharsets.UTF_8), price, rating,
+                            LocalDate.ofEpochDay(bestBefore))
+                    : new Drink(id, new String(name, StandardCharsets.UTF_8), price, rating);
+            int count = reviewCount(at);
+            return count == 0 ? product : product.applyRating(rating, 1L + count);
+        }
+
+        RatingSummary summary(int i) {
+            int at = recordsStart + i * RECORD_SIZE + 24;
+            int[] histogram = new int[RATINGS.length];
+            for (int r = 0; r < histogram.length; r++) {
+                histogram[r] = buffer.getInt(at + r * Integer.BYTES);
+            }
+            return RatingSummary.of(histogram);
+        }
+
+        /**
+         * @return number of products per rating, indexed by the ordinal of
+         * the rating
+         */
+        int[] ratingCounts() {
+            return ratingCounts.clone();
+        }
+
+        /**
+         * @return sum of product discounts per rating, for the ratings of at
+         * least one product
+         */
+        Map<Rating, BigDecimal> discounts() {
+            return Collections.unmodifiableMap(new EnumMap<>(discounts));
+        }
+
+        /**
+         * @return lookup data written by the store, see {@link ProductStore#index()}
+         */
+        ByteBuffer storeIndex() {
+            return storeIndex.duplicate();
+        }
+
+        private int reviewCount(int at) {
+            int count = 0;
+            for (int r = 0; r < RATINGS.length; r++) {
+                count += buffer.getInt(at + 24 + r * Integer.BYTES);
+            }
+            return count;
+        }
+    }
+
+    /**
+     * Maps a snapshot file into memory, the mapping stays valid after the
+     * file is replaced by a newer snapshot
+     *
+     * @param file snapshot file
+     * @return mapped snapshot
+     * @throws IOException if the file cannot be read or is not a complete
+     * snapshot
+     */
+    static Image read(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Snapshot too large to map");
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new Image(buffer);
+        }
+    }
+
+    /**
+     * Writes a snapshot replacing the previous one
+     *
+     * @param file snapshot file
+     * @param position store position the products and summaries match
+     * @param sequence sequence number of the last log record they hold
+     * @param products products of the catalog in any order
+     * @param summaries rating summaries in the order of the products
+     * @param storeIndex lookup data of the store at the same position
+     * @throws IOException if the snapshot cannot be written
+     */
+    static void write(Path file, long position, long sequence, List<Product> products,
+            List<RatingSummary> summaries, byte[] storeIndex) throws IOException {
+        Integer[] order = new Integer[products.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.comparingInt(i -> products.get(i).getId()));
+        ByteArrayOutputStream values = new ByteArrayOutputStream(products.size() * 24);
+        DataOutputStream valuesOut = new DataOutputStream(values);
+        int[] valueOffsets = new int[products.size()];
+        int[] nameLengths = new int[products.size()];
+        int[] ratingCounts = new int[RATINGS.length];
+        BigDecimal[] discounts = new BigDecimal[RATINGS.length];
+        Arrays.fill(discounts, BigDecimal.ZERO);
+        for (int i = 0; i < products.size(); i++) {
+            Product product = products.get(i);
+            byte[] unscaled = product.getPrice().unscaledValue().toByteArray();
+            byte[] name = product.getName().getBytes(StandardCharsets.UTF_8);
+            valueOffsets[i] = values.size();
+            nameLengths[i] = name.length;
+            valuesOut.writeInt(unscaled.length);
+            valuesOut.write(unscaled);
+            valuesOut.write(name);
+            ratingCounts[product.getRating().ordinal()]++;
+            discounts[product.getRating().ordinal()] = discounts[product.getRating().ordinal()]
+                    .add(product.getDiscount());
+        }
+        ByteArrayOutputStream totals = new ByteArrayOutputStream(RATINGS.length * 24);
+        DataOutputStream totalsOut = new DataOutputStream(totals);
+        for (Rating rating : RATINGS) {
+            byte[] unscaled = discounts[rating.ordinal()].unscaledValue().toByteArray();
+            totalsOut.writeInt(ratingCounts[rating.ordinal()]);
+            totalsOut.writeInt(discounts[rating.ordinal()].scale());
+            totalsOut.writeInt(unscaled.length);
+            totalsOut.write(unscaled);
+        }
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.createDirectories(file.getParent());
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            CheckedOutputStream checked = new CheckedOutputStream(
+                    new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16), new CRC32C());
+            DataOutputStream out = new DataOutputStream(checked);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(position);
+            out.writeLong(sequence);
+            out.writeInt(products.size());
+            out.writeInt(values.size());
+            out.writeInt(totals.size());
+            out.writeInt(0);
+            for (int i : order) {
+                out.writeInt(products.get(i).getId());
+            }
+            for (int i : order) {
+                Product product = products.get(i);
+                out.writeInt(product.getId());
+                out.writeByte(product instanceof Food ? 'F' : 'D');
+                out.writeByte(product.getRating().ordinal());
+                out.writeShort(0);
+                out.writeInt(product.getPrice().scale());
+                out.writeInt(valueOffsets[i]);
+                out.writeInt(nameLengths[i]);
+                out.writeInt(product instanceof Food ? (int) product.getBestBefore().toEpochDay() : NO_DATE);
+                Map<Rating, Integer> histogram = summaries.get(i).getHistogram();
+                for (Rating rating : RATINGS) {
+                    out.writeInt(histogram.get(rating));
+                }
+            }
+            values.writeTo(out);
+            totals.writeTo(out);
+            out.write(storeIndex);
+            out.flush();
+            out.writeInt((int) checked.getChecksum().getValue());
+            out.flush();
+            channel.force(true);
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
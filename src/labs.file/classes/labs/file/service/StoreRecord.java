@@ -0,0 +1,37 @@
+/*
+ * Copyright (C) 2023 bhagc
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.file.service;
+
+import labs.pm.data.Product;
+import labs.pm.data.Review;
+
+/**
+ * A new product or a new review of the product with the given id, as written
+ * to a {@link ProductStore}.
+ *
+ * @author bhagc
+ */
+record StoreRecord(int id, Product product, Review review) {
+
+    static StoreRecord of(Product product) {
+        return new StoreRecord(product.getId(), product, null);
+    }
+
+    static StoreRecord of(int id, Review review) {
+        return new StoreRecord(id, null, review);
+    }
+}
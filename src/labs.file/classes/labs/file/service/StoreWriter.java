@@ -0,0 +1,250 @@
+/*
+ * Copyright (C) 2023 bhagc
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.file.service;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+
+/**
+ * Background writer committing queued records to a {@link ProductStore} in
+ * groups.
+ * <br>
+ * Records are queued by {@link #submit(StoreRecord) submit}, which blocks
+ * while {@code capacity} records are waiting. A single thread takes whatever
+ * is queued, up to {@code batchSize} records, and writes it as one batch. The
+ * future of a record completes once it is written with the configured
+ * {@link Durability}.
+ * <br>
+ * With a {@link WriteAheadLog} a batch is appended to the log first and the
+ * durability applies to the log, the store is written without forcing and
+ * forced at the next checkpoint. A {@link #barrier(Callable) barrier} runs a
+ * task on the writer thread between the records queued before and after it,
+ * so a checkpoint reads the store position of exactly the records queued
+ * before it without making writers wait for the queue to drain.
+ *
+ * @author bhagc
+ */
+class StoreWriter implements Closeable {
+
+    /**
+     * When a written record counts as durable
+     */
+    enum Durability {
+        /**
+         * handed to the operating system, not forced to disk
+         */
+        ASYNC,
+        /**
+         * forced to disk once per batch
+         */
+        BATCH,
+        /**
+         * forced to disk after every record, records are not grouped
+         */
+        RECORD
+    }
+
+    private static final Pending STOP = new Pending(null, null, null);
+    private static final Logger logger = Logger.getLogger(StoreWriter.class.getName());
+    private final ProductStore store;
+    private final WriteAheadLog log;
+    private final Durability durability;
+    private final int batchSize;
+    private final BlockingQueue<Pending> queue;
+    private final Map<Integer, CompletableFuture<Void>> lastWrites = new ConcurrentHashMap<>();
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private final Thread thread;
+
+    /**
+     * A queued record or, with a null record, a barrier task
+     */
+    private record Pending(StoreRecord record, CompletableFuture<Void> written, Runnable barrier) {
+
+    }
+
+    /**
+     * @param store store to write to
+     * @param log log to append to before the store or null
+     * @param durability when a written record counts as durable
+     * @param batchSize most records written as one batch
+     * @param capacity most records waiting to be written
+     */
+    StoreWriter(ProductStore store, WriteAheadLog log, Durability durability, int batchSize, int capacity) {
+        this.store = store;
+        this.log = log;
+        this.durability = durability;
+        this.batchSize = Math.max(1, batchSize);
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, capacity));
+        this.thread = new Thread(this::run, "product-store-writer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Queues a record, waiting for space when the queue is full
+     *
+     * @param record record to write
+     * @return future completing when the record is durable
+     */
+    CompletableFuture<Void> submit(StoreRecord record) {
+        CompletableFuture<Void> written = new CompletableFuture<>();
+        lastWrites.put(record.id(), written);
+        try {
+            queue.put(new Pending(record, written, null));
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            lastWrites.remove(record.id(), written);
+            written.completeExceptionally(ex);
+        }
+        return written;
+    }
+
+    /**
+     * Waits until all records of a product queued so far have been written,
+     * so the store can be read for that product
+     *
+     * @param id product id
+     */
+    void awaitWritten(int id) {
+        CompletableFuture<Void> last = lastWrites.get(id);
+        if (last != null) {
+            try {
+                last.join();
+            } catch (CompletionException ex) {
+                // already logged by the writer thread
+            }
+        }
+    }
+
+    /**
+     * Queues a task run by the writer thread once the records queued before
+     * it have been written, whether or not they could be, and before any
+     * record queued after it
+     *
+     * @param <T> type of the result of the task
+     * @param task task to run
+     * @return future of the result of the task
+     */
+    <T> CompletableFuture<T> barrier(Callable<T> task) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        Runnable barrier = () -> {
+            try {
+                result.complete(task.call());
+            } catch (Exception ex) {
+                result.completeExceptionally(ex);
+            }
+        };
+        try {
+            queue.put(new Pending(null, null, barrier));
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            result.completeExceptionally(ex);
+        }
+        return result;
+    }
+
+    /**
+     * Writes everything queued so far and stops the writer thread
+     */
+    @Override
+    public void close() {
+        if (closed.compareAndSet(false, true)) {
+            try {
+                queue.put(STOP);
+                thread.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void run() {
+        List<Pending> batch = new ArrayList<>(batchSize);
+        boolean stopping = false;
+        while (!stopping) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException ex) {
+                continue;
+            }
+            queue.drainTo(batch, batchSize - 1);
+            stopping = batch.remove(STOP);
+            int from = 0;
+            for (int i = 0; i <= batch.size(); i++) {
+                if (i == batch.size() || batch.get(i).barrier() != null) {
+                    write(batch.subList(from, i));
+                    if (i < batch.size()) {
+                        batch.get(i).barrier().run();
+                    }
+                    from = i + 1;
+                }
+            }
+            batch.clear();
+        }
+    }
+
+    /**
+     * Writes records with the durability of the writer, one at a time for
+     * {@link Durability#RECORD}
+     */
+    private void write(List<Pending> batch) {
+        if (durability == Durability.RECORD) {
+            for (Pending pending : batch) {
+                write(List.of(pending), true);
+            }
+        } else if (!batch.isEmpty()) {
+            write(batch, durability == Durability.BATCH);
+        }
+    }
+
+    private void write(List<Pending> batch, boolean force) {
+        Throwable failure = null;
+        try {
+            List<StoreRecord> records = batch.stream().map(Pending::record).collect(Collectors.toList());
+            if (log != null) {
+                log.append(records, force);
+                store.write(records, false);
+            } else {
+                store.write(records, force);
+            }
+        } catch (IOException | RuntimeException ex) {
+            logger.log(Level.SEVERE, "Error writing " + batch.size() + " records", ex);
+            failure = ex;
+        }
+        for (Pending pending : batch) {
+            lastWrites.remove(pending.record().id(), pending.written());
+            if (failure == null) {
+                pending.written().complete(null);
+            } else {
+                pending.written().completeExceptionally(failure);
+            }
+        }
+    }
+}
@@ -0,0 +1,371 @@
+/*
+ * Copyright (C) 2023 bhagc
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.file.service;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+import labs.pm.data.Product;
+import labs.pm.data.Review;
+
+/**
+ * Log every product and review record is appended to before it is written
+ * to the {@link ProductStore}.
+ * <br>
+ * A record is framed as its length, a sequence number, the record in the
+ * text form of the segment store, {@code P,<product>} or
+ * {@code R,<id>,<review>}, and a CRC32C of all of it, so a torn or corrupt
+ * frame is detected and the log is cut there. The log is a series of files,
+ * a {@link #roll(long) roll} at a checkpoint starts the next one and the
+ * files before it are deleted once the checkpoint is written, so recovery
+ * reads only the records written since the last checkpoint. A file started
+ * by a roll opens with a {@code C,<position>} frame holding the store
+ * position of the checkpoint, so the records can be replayed into the store
+ * even when the snapshot of the checkpoint cannot be read.
+ * <br>
+ * Appends are serialized on the log.
+ *
+ * @author bhagc
+ */
+class WriteAheadLog implements Closeable {
+
+    private static final int MAX_RECORD_SIZE = 1 << 24;
+    private static final Logger logger = Logger.getLogger(WriteAheadLog.class.getName());
+    private final Path folder;
+    private final String fileName;
+    private final Pattern filePattern;
+    private final RecordFormat format;
+    private FileChannel channel;
+    private int file;
+    private long sequence;
+    private long start = -1;
+
+    /**
+     * Position of the log at a checkpoint
+     *
+     * @param sequence sequence number of the last record before it
+     * @param file first file after it
+     */
+    record Mark(long sequence, int file) {
+
+    }
+
+    /**
+     * A record read back from the log
+     *
+     * @param sequence sequence number of the record
+     * @param record product or review
+     */
+    record Entry(long sequence, StoreRecord record) {
+
+    }
+
+    /**
+     * @param folder folder of the log files
+     * @param fileName name of the log files with {@code {0}} for the file
+     * number
+     * @param format text form of the records
+     */
+    WriteAheadLog(Path folder, String fileName, RecordFormat format) {
+        this.folder = folder;
+        this.fileName = fileName;
+        String[] name = fileName.split("\\{0\\}");
+        this.filePattern = Pattern.compile(Pattern.quote(name[0]) + "(\\d+)"
+                + (name.length > 1 ? Pattern.quote(name[1]) : ""));
+        this.format = format;
+    }
+
+    /**
+     * Reads the records written after a checkpoint and prepares the log for
+     * appending after its last valid record, a torn or corrupt frame at the
+     * end of the last file is cut off
+     *
+     * @param after sequence number of the checkpoint
+     * @return records with a higher sequence number, in the order written
+     * @throws IOException if the log cannot be read
+     */
+    synchronized List<Entry> recover(long after) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        List<Integer> files = listFiles();
+        long last = after;
+        start = -1;
+        for (int i = 0; i < files.size(); i++) {
+            Path path = path(files.get(i));
+            long end = read(path, after, entries, i == 0);
+            if (!entries.isEmpty()) {
+                last = Math.max(last, entries.get(entries.size() - 1).sequence());
+            }
+            if (end < Files.size(path)) {
+                for (int later : files.subList(i + 1, files.size())) {
+                    Path skipped = path(later);
+                    logger.log(Level.SEVERE, "Corrupt record in {0}, moving aside later log file {1}",
+                            new Object[]{path, skipped});
+                    Files.move(skipped, skipped.resolveSibling(skipped.getFileName() + ".corrupt"));
+                }
+                files = files.subList(0, i + 1);
+                logger.log(Level.WARNING, "Truncating incomplete record at the end of {0}", path);
+                try (FileChannel out = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                    out.truncate(end);
+                }
+                break;
+            }
+        }
+        sequence = last;
+        file = files.isEmpty() ? 0 : files.get(files.size() - 1);
+        return entries;
+    }
+
+    /**
+     * Appends records with one write
+     *
+     * @param records records to append
+     * @param force whether to force them to the storage device
+     * @throws IOException if the records could not be appended
+     */
+    synchronized void append(List<StoreRecord> records, boolean force) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(records.size() * 80);
+        DataOutputStream out = new DataOutputStream(bytes);
+        long next = sequence;
+        for (StoreRecord record : records) {
+            writeFrame(out, ++next, record.product() != null
+                    ? "P," + format.formatProduct(record.product())
+                    : "R," + record.id() + "," + format.formatReview(record.review()));
+        }
+        if (channel == null) {
+            Files.createDirectories(folder);
+            channel = FileChannel.open(path(file), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            channel.position(channel.size());
+        }
+        long start = channel.position();
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            if (force) {
+                channel.force(false);
+            }
+        } catch (IOException ex) {
+            // cut a partly written batch, records appended later must follow a valid frame
+            channel.truncate(start);
+            channel.position(start);
+            throw ex;
+        }
+        sequence = next;
+    }
+
+    /**
+     * Starts a new log file opening with the store position of the
+     * checkpoint, called at a checkpoint while no appends are in progress
+     *
+     * @param position store position the records of the new file follow
+     * @return position of the log at the checkpoint
+     * @throws IOException if the current file cannot be closed or the new one
+     * written
+     */
+    synchronized Mark roll(long position) throws IOException {
+        if (channel != null) {
+            channel.force(false);
+            channel.close();
+            channel = null;
+        }
+        file++;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        writeFrame(new DataOutputStream(bytes), sequence, "C," + position);
+        Files.createDirectories(folder);
+        channel = FileChannel.open(path(file), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        channel.force(false);
+        return new Mark(sequence, file);
+    }
+
+    /**
+     * Deletes the files before a checkpoint, called once the checkpoint is
+     * durable
+     *
+     * @param mark position of the log at the checkpoint
+     */
+    void discard(Mark mark) {
+        try {
+            for (int number : listFiles()) {
+                if (number < mark.file()) {
+                    Files.deleteIfExists(path(number));
+                }
+            }
+        } catch (IOException ex) {
+            logger.log(Level.WARNING, "Error in deleting log files before the checkpoint", ex);
+        }
+    }
+
+    synchronized long sequence() {
+        return sequence;
+    }
+
+    /**
+     * @return store position the oldest file read by the last
+     * {@link #recover(long) recover} starts at, -1 when that file does not
+     * open with one
+     */
+    synchronized long startPosition() {
+        return start;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+
+    private static void writeFrame(DataOutputStream out, long number, String record) throws IOException {
+        byte[] text = record.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer header = ByteBuffer.allocate(Integer.BYTES + Long.BYTES);
+        header.putInt(text.length).putLong(number);
+        CRC32C crc = new CRC32C();
+        crc.update(header.array());
+        crc.update(text);
+        out.write(header.array());
+        out.write(text);
+        out.writeInt((int) crc.getValue());
+    }
+
+    /**
+     * Reads the valid frames of a file
+     *
+     * @param first whether the file is the oldest one, whose checkpoint frame
+     * gives the {@link #startPosition() start position}
+     * @return position after the last valid frame
+     */
+    private long read(Path path, long after, List<Entry> entries, boolean first) throws IOException {
+        long end = 0;
+        CRC32C crc = new CRC32C();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                Files.newInputStream(path), 1 << 16))) {
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException ex) {
+                    return end;
+                }
+                if (length < 0 || length > MAX_RECORD_SIZE) {
+                    return end;
+                }
+                byte[] frame = new byte[Integer.BYTES + Long.BYTES + length];
+                ByteBuffer.wrap(frame).putInt(length);
+                if (in.readNBytes(frame, Integer.BYTES, frame.length - Integer.BYTES)
+                        < frame.length - Integer.BYTES) {
+                    return end;
+                }
+                int stored;
+                try {
+                    stored = in.readInt();
+                } catch (EOFException ex) {
+                    return end;
+                }
+                crc.reset();
+                crc.update(frame);
+                if ((int) crc.getValue() != stored) {
+                    return end;
+                }
+                boolean opening = end == 0;
+                end += frame.length + Integer.BYTES;
+                long number = ByteBuffer.wrap(frame).getLong(Integer.BYTES);
+                String text = new String(frame, Integer.BYTES + Long.BYTES, length, StandardCharsets.UTF_8);
+                if (opening && text.startsWith("C,")) {
+                    if (first) {
+                        try {
+                            start = Long.parseLong(text.substring(2));
+                        } catch (NumberFormatException ex) {
+                            logger.log(Level.WARNING, "Error in parsing checkpoint {0}", text);
+                        }
+                    }
+                    continue;
+                }
+                if (number > after) {
+                    StoreRecord record = parse(text);
+                    if (record != null) {
+                        entries.add(new Entry(number, record));
+                    }
+                }
+            }
+        }
+    }
+
+    private StoreRecord parse(String text) {
+        if (text.startsWith("P,")) {
+            Product product = format.parseProduct(text.substring(2));
+            return product == null ? null : StoreRecord.of(product);
+        } else if (text.startsWith("R,")) {
+            int comma = text.indexOf(',', 2);
+            try {
+                int id = Integer.parseInt(text.substring(2, comma));
+                Review review = format.parseReview(text.substring(comma + 1));
+                return review == null ? null : StoreRecord.of(id, review);
+            } catch (NumberFormatException | StringIndexOutOfBoundsException ex) {
+                logger.log(Level.WARNING, "Error in parsing Review record {0}", text);
+            }
+        } else {
+            logger.log(Level.WARNING, "Unknown record {0}", text);
+        }
+        return null;
+    }
+
+    private List<Integer> listFiles() throws IOException {
+        if (Files.notExists(folder)) {
+            return List.of();
+        }
+        try (Stream<Path> files = Files.list(folder)) {
+            return files
+                    .map(path -> filePattern.matcher(path.getFileName().toString()))
+                    .filter(Matcher::matches)
+                    .map(matcher -> Integer.parseInt(matcher.group(1)))
+                    .sorted(Comparator.naturalOrder())
+                    .collect(Collectors.toList());
+        }
+    }
+
+    private Path path(int number) {
+        return folder.resolve(MessageFormat.format(fileName, String.valueOf(number)));
+    }
+}
@@ -19,5 +19,6 @@ module labs.file {
     requires java.logging;
     requires labs.pm;
     provides labs.pm.service.ProductManager 
-    with labs.file.service.ProductFileManager;
+    with labs.file.service.ProductFileManager,
+            labs.file.service.ProductSegmentManager;
 }
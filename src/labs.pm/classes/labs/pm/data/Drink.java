@@ -34,9 +34,13 @@ public class Drink extends Product {
         super(id, name, price);
     }
 
+    private Drink(int id, String name, BigDecimal price, Rating rating, long version) {
+        super(id, name, price, rating, version);
+    }
+
     @Override
-    public Product applyRating(Rating rating) {
-         return new Drink(this.getId(),this.getName(),this.getPrice(),rating);
+    public Product applyRating(Rating rating, long version) {
+         return new Drink(this.getId(),this.getName(),this.getPrice(),rating,version);
     }
     
     
@@ -40,9 +40,14 @@ public class Food extends Product {
         super(id, name, price);
         this.bestBefore = bestBefore;
     }
+   private Food(int id, String name, BigDecimal price, Rating rating, LocalDate bestBefore, long version) {
+        super(id, name, price, rating, version);
+        this.bestBefore = bestBefore;
+    }
+
     @Override
-    public Product applyRating(Rating rating) {
-        return new Food(this.getId(),this.getName(),this.getPrice(),rating,this.bestBefore); 
+    public Product applyRating(Rating rating, long version) {
+        return new Food(this.getId(),this.getName(),this.getPrice(),rating,this.bestBefore,version); 
     }
 
     @Override
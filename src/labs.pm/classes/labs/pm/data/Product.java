@@ -30,6 +30,9 @@ import static labs.pm.data.Rating.*;
  * <br>
  * Each product can have a discount , calculated based on a
  * {@link  DISCOUNT_RATE discount rate}
+ * <br>
+ * Each product has a version, 1 when created and incremented by every review
+ * applied to it
  *
  * @version 4.0
  * @author bhagc
@@ -47,16 +50,22 @@ public abstract class Product implements Rateable<Product>, Serializable {
     private final String name;
     private final BigDecimal price;
     private Rating rating;
+    private final long version;
 
     Product() {
         this(0, "NO Product", BigDecimal.ZERO);
     }
 
     Product(int id, String name, BigDecimal price, Rating rating) {
+        this(id, name, price, rating, 1);
+    }
+
+    Product(int id, String name, BigDecimal price, Rating rating, long version) {
         this.id = id;
         this.name = name;
         this.price = price;
         this.rating = rating;
+        this.version = version;
     }
 
     Product(int id, String name, BigDecimal price) {
@@ -85,6 +94,25 @@ public abstract class Product implements Rateable<Product>, Serializable {
         return rating;
     }
 
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * @return copy of this product with the given rating and the next version
+     */
+    @Override
+    public Product applyRating(Rating rating) {
+        return applyRating(rating, version + 1);
+    }
+
+    /**
+     * @param rating rating of the copy
+     * @param version version of the copy
+     * @return copy of this product with the given rating and version
+     */
+    public abstract Product applyRating(Rating rating, long version);
+
     /**
      * Calculates discount based on a product price and
      * {@link DISCOUNT_RATE discount rate}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2023 bhagc
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.pm.service;
+
+import java.math.BigDecimal;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import labs.pm.data.Product;
+import labs.pm.data.Rating;
+import labs.pm.data.RatingSummary;
+
+/**
+ * Immutable view of the catalog at one point in time.
+ * <br>
+ * All reads of a snapshot see the same products, rating summaries and
+ * discounts however long they run, and take no lock, later changes of the
+ * catalog are seen by the next {@link ProductManager#snapshot() snapshot}.
+ *
+ * @author bhagc
+ */
+public interface CatalogSnapshot {
+
+    /**
+     * @return number of changes of the catalog this snapshot includes, so a
+     * later snapshot with the same version holds the same catalog, or -1 when
+     * the version is not known
+     */
+    long getVersion();
+
+    int size();
+
+    Product findProduct(int id) throws ProductManagerException;
+
+    RatingSummary getRatingSummary(int id) throws ProductManagerException;
+
+    /**
+     * @return products of the snapshot in no particular order
+     */
+    Stream<Product> products();
+
+    /**
+     * @return immutable sum of product discounts per rating
+     */
+    Map<Rating, BigDecimal> getDiscounts();
+
+    default List<Product> findProducts(Predicate<Product> filter) {
+        return products().filter(filter).collect(Collectors.toList());
+    }
+
+    /**
+     * @param query conditions, order and limit of the products
+     * @return matching products in query order
+     */
+    default List<Product> findProducts(ProductQuery query) {
+        return query.collect(products());
+    }
+
+    /**
+     * @see ProductManager#listProducts(ProductSort, int, String)
+     */
+    default ProductPage listProducts(ProductSort sort, int limit, String after) {
+        return ProductPage.select(products(), sort, limit, after);
+    }
+
+    /**
+     * Snapshot of a copy of the products, rating summaries and discounts
+     *
+     * @param version version of the catalog the copy was taken at
+     * @param products products of the catalog
+     * @param ratings rating summary by product id
+     * @param discounts sum of product discounts per rating
+     * @return snapshot of the copy
+     */
+    static CatalogSnapshot of(long version, List<Product> products, Map<Integer, RatingSummary> ratings,
+            Map<Rating, BigDecimal> discounts) {
+        Map<Integer, Product> byId = new HashMap<>();
+        products.forEach(product -> byId.put(product.getId(), product));
+        Map<Integer, RatingSummary> summaries = Map.copyOf(ratings);
+        Map<Rating, BigDecimal> sums = discounts.isEmpty() ? Map.of()
+                : Collections.unmodifiableMap(new EnumMap<>(discounts));
+        return new CatalogSnapshot() {
+            @Override
+            public long getVersion() {
+                return version;
+            }
+
+            @Override
+            public int size() {
+                return byId.size();
+            }
+
+            @Override
+            public Product findProduct(int id) throws ProductManagerException {
+                Product product = byId.get(id);
+                if (product == null) {
+                    throw new ProductManagerException("Product with this id: " + id + " is not Found");
+                }
+                return product;
+            }
+
+            @Override
+            public RatingSummary getRatingSummary(int id) throws ProductManagerException {
+                findProduct(id);
+                return summaries.getOrDefault(id, RatingSummary.EMPTY);
+            }
+
+            @Override
+            public Stream<Product> products() {
+                return byId.values().stream();
+            }
+
+            @Override
+            public Map<Rating, BigDecimal> getDiscounts() {
+                return sums;
+            }
+        };
+    }
+}
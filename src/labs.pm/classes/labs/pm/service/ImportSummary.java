@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2023 bhagc
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.pm.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Outcome of a bulk import: rows inserted, rows skipped because the id
+ * exists and rows rejected as invalid, with the first
+ * {@value #MAX_ERRORS} rejection messages.
+ * <br>
+ * Instances are immutable, {@link #add(ImportSummary) add} returns a new
+ * summary.
+ *
+ * @author bhagc
+ */
+public final class ImportSummary {
+
+    public static final int MAX_ERRORS = 100;
+    public static final ImportSummary EMPTY = new ImportSummary(0, 0, 0, List.of());
+    private final long inserted;
+    private final long duplicates;
+    private final long rejected;
+    private final List<String> errors;
+
+    public ImportSummary(long inserted, long duplicates, long rejected, List<String> errors) {
+        this.inserted = inserted;
+        this.duplicates = duplicates;
+        this.rejected = rejected;
+        this.errors = Collections.unmodifiableList(new ArrayList<>(
+                errors.subList(0, Math.min(errors.size(), MAX_ERRORS))));
+    }
+
+    /**
+     * @param other summary of another part of the same import
+     * @return summary of both parts
+     */
+    public ImportSummary add(ImportSummary other) {
+        List<String> all = new ArrayList<>(errors);
+        all.addAll(other.errors);
+        return new ImportSummary(inserted + other.inserted, duplicates + other.duplicates,
+                rejected + other.rejected, all);
+    }
+
+    public long getInserted() {
+        return inserted;
+    }
+
+    public long getDuplicates() {
+        return duplicates;
+    }
+
+    public long getRejected() {
+        return rejected;
+    }
+
+    public List<String> getErrors() {
+        return errors;
+    }
+
+    @Override
+    public String toString() {
+        return "ImportSummary{" + "inserted=" + inserted + ", duplicates=" + duplicates
+                + ", rejected=" + rejected + ", errors=" + errors + '}';
+    }
+}
@@ -18,11 +18,18 @@ package labs.pm.service;
 
 import java.math.BigDecimal;
 import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.function.Predicate;
+import java.util.stream.Stream;
+import labs.pm.data.Food;
 import labs.pm.data.Product;
 import labs.pm.data.Rating;
+import labs.pm.data.RatingSummary;
 import labs.pm.data.Review;
 
 /**
@@ -32,9 +39,128 @@ import labs.pm.data.Review;
 public interface ProductManager {
     Product createProduct(int id,String name,BigDecimal price,Rating rating)throws ProductManagerException;
     Product createProduct(int id,String name,BigDecimal price,Rating rating,LocalDate bestBefore)throws ProductManagerException;
+    /**
+     * Creates many products, skipping ids that already exist
+     *
+     * @param specs products to create
+     * @return numbers of inserted and duplicate products
+     */
+    default ImportSummary createProducts(Stream<ProductSpec> specs) throws ProductManagerException {
+        long inserted = 0;
+        long duplicates = 0;
+        for (Iterator<ProductSpec> it = specs.iterator(); it.hasNext();) {
+            ProductSpec spec = it.next();
+            try {
+                findProduct(spec.getId());
+                duplicates++;
+                continue;
+            } catch (ProductManagerException ex) {
+                // not found, create it
+            }
+            if (spec.getBestBefore() == null) {
+                createProduct(spec.getId(), spec.getName(), spec.getPrice(), spec.getRating());
+            } else {
+                createProduct(spec.getId(), spec.getName(), spec.getPrice(), spec.getRating(), spec.getBestBefore());
+            }
+            inserted++;
+        }
+        return new ImportSummary(inserted, duplicates, 0, List.of());
+    }
     Product reviewProduct(int id,Rating rating,String comments)throws ProductManagerException;
+    /**
+     * Applies many reviews, the stream is consumed only as fast as the
+     * reviews are applied
+     *
+     * @param reviews reviews to apply
+     * @return numbers of applied reviews and of reviews rejected because the
+     * product does not exist
+     */
+    default ImportSummary reviewProducts(Stream<ReviewSpec> reviews) throws ProductManagerException {
+        long applied = 0;
+        long rejected = 0;
+        List<String> errors = new ArrayList<>();
+        for (Iterator<ReviewSpec> it = reviews.iterator(); it.hasNext();) {
+            ReviewSpec review = it.next();
+            try {
+                findProduct(review.getId());
+            } catch (ProductManagerException ex) {
+                if (rejected++ < ImportSummary.MAX_ERRORS) {
+                    errors.add(ex.getMessage());
+                }
+                continue;
+            }
+            reviewProduct(review.getId(), review.getRating(), review.getComments());
+            applied++;
+        }
+        return new ImportSummary(applied, 0, rejected, errors);
+    }
+    /**
+     * Reviews a product like {@link #reviewProduct(int, Rating, String)}
+     *
+     * @return future completing with the reviewed product once the review is durable
+     */
+    CompletableFuture<Product> reviewProductAsync(int id,Rating rating,String comments);
     Product findProduct(int id)throws ProductManagerException;
     List<Product> findProducts(Predicate<Product> filter)throws ProductManagerException;
+    /**
+     * @param query conditions, order and limit of the products
+     * @return matching products in query order
+     */
+    default List<Product> findProducts(ProductQuery query) throws ProductManagerException {
+        return query.collect(findProducts(query::test).stream());
+    }
+    /**
+     * @param rating lowest rating
+     * @return products rated at least the given rating
+     */
+    default List<Product> findProductsRatedAtLeast(Rating rating) throws ProductManagerException {
+        return findProducts(product -> product.getRating().compareTo(rating) >= 0);
+    }
+    /**
+     * @param from lowest price, inclusive, or null for no lower bound
+     * @param to highest price, exclusive, or null for no upper bound
+     * @return products priced in the range, an empty range matches nothing
+     */
+    default List<Product> findProductsByPrice(BigDecimal from, BigDecimal to) throws ProductManagerException {
+        return findProducts(product -> (from == null || product.getPrice().compareTo(from) >= 0)
+                && (to == null || product.getPrice().compareTo(to) < 0));
+    }
+    /**
+     * @param date first date the products are not good for
+     * @return Food with a best before date before the given date
+     */
+    default List<Product> findProductsBestBefore(LocalDate date) throws ProductManagerException {
+        return findProducts(product -> product instanceof Food && product.getBestBefore().isBefore(date));
+    }
+    /**
+     * @param sort order of the listing
+     * @param limit maximum number of products of the page
+     * @param after cursor of the previous page, null for the first page
+     * @return page of products following the cursor
+     * @throws IllegalArgumentException if the limit or the cursor is not valid
+     */
+    default ProductPage listProducts(ProductSort sort, int limit, String after) throws ProductManagerException {
+        return ProductPage.select(findProducts(product -> true).stream(), sort, limit, after);
+    }
     List<Review> findReviews(int id)throws ProductManagerException;
+    RatingSummary getRatingSummary(int id)throws ProductManagerException;
     Map<Rating,BigDecimal> getDiscounts()throws ProductManagerException;
+    /**
+     * Immutable view of the catalog for long reads. This default copies the
+     * catalog, which is not consistent with concurrent changes, managers
+     * keeping versions of the catalog return the current one in constant time.
+     *
+     * @return snapshot of the catalog
+     */
+    default CatalogSnapshot snapshot() throws ProductManagerException {
+        List<Product> products = findProducts(product -> true);
+        Map<Integer, RatingSummary> ratings = new HashMap<>();
+        for (Product product : products) {
+            RatingSummary summary = getRatingSummary(product.getId());
+            if (summary != null) {
+                ratings.put(product.getId(), summary);
+            }
+        }
+        return CatalogSnapshot.of(-1, products, ratings, getDiscounts());
+    }
 }
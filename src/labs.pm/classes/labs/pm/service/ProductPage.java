@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2023 bhagc
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.pm.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+import labs.pm.data.Product;
+
+/**
+ * One page of a sorted product listing and the cursor of the next page.
+ *
+ * @author bhagc
+ */
+public final class ProductPage {
+
+    private final List<Product> products;
+    private final String next;
+
+    private ProductPage(List<Product> products, String next) {
+        this.products = products;
+        this.next = next;
+    }
+
+    /**
+     * Selects the first products after a cursor.
+     * <br>
+     * Only the best {@code limit} products seen so far are kept in a bounded
+     * heap, so a page costs one pass over the products and
+     * {@code O(n log limit)} comparisons instead of sorting all of them.
+     *
+     * @param products products to list, in any order
+     * @param sort order of the listing
+     * @param limit maximum number of products of the page, at least 1
+     * @param after cursor of the page, null for the first page
+     * @return page of at most {@code limit} products
+     * @throws IllegalArgumentException if the cursor is not valid
+     */
+    public static ProductPage select(Stream<Product> products, ProductSort sort, int limit, String after) {
+        if (limit < 1) {
+            throw new IllegalArgumentException("Invalid limit " + limit);
+        }
+        Predicate<Product> afterCursor = sort.after(after);
+        Comparator<Product> order = sort.comparator();
+        PriorityQueue<Product> best = new PriorityQueue<>(Math.min(limit, 1024) + 1, order.reversed());
+        long[] matches = new long[1];
+        products.filter(afterCursor).forEachOrdered(product -> {
+            matches[0]++;
+            if (best.size() < limit) {
+                best.add(product);
+            } else if (order.compare(product, best.peek()) < 0) {
+                best.poll();
+                best.add(product);
+            }
+        });
+        List<Product> page = new ArrayList<>(best);
+        page.sort(order);
+        String next = matches[0] > limit ? sort.cursor(page.get(page.size() - 1)) : null;
+        return new ProductPage(Collections.unmodifiableList(page), next);
+    }
+
+    public List<Product> getProducts() {
+        return products;
+    }
+
+    /**
+     * @return cursor of the next page or null when this is the last page
+     */
+    public String getNext() {
+        return next;
+    }
+
+    @Override
+    public String toString() {
+        return "ProductPage{" + "products=" + products + ", next=" + next + '}';
+    }
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2023 bhagc
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.pm.service;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import labs.pm.data.Food;
+import labs.pm.data.Product;
+import labs.pm.data.Rating;
+
+/**
+ * Immutable query over the products of a {@link ProductManager}.
+ * <br>
+ * Conditions on id, name, type, rating, price and best before date are known
+ * to the provider, so it can choose an index for the most selective one. Any
+ * other condition is given as a {@link Predicate} and checked on the products
+ * left by the known conditions. Every method returns a new query, for example
+ * {@code ProductQuery.all().ratedAtLeast(Rating.FOUR_STAR).sortedBy(order).limit(10)}.
+ *
+ * @author bhagc
+ */
+public final class ProductQuery {
+
+    private static final ProductQuery ALL = new ProductQuery(null, null, null,
+            Rating.NO_STAR, Rating.FIVE_STAR, null, null, null, null, null, Integer.MAX_VALUE);
+    private final Integer id;
+    private final String name;
+    private final Class<? extends Product> type;
+    private final Rating minRating;
+    private final Rating maxRating;
+    private final BigDecimal minPrice;
+    private final BigDecimal maxPrice;
+    private final LocalDate bestBefore;
+    private final Predicate<Product> filter;
+    private final Comparator<Product> order;
+    private final int limit;
+
+    private ProductQuery(Integer id, String name, Class<? extends Product> type,
+            Rating minRating, Rating maxRating, BigDecimal minPrice, BigDecimal maxPrice,
+            LocalDate bestBefore, Predicate<Product> filter, Comparator<Product> order, int limit) {
+        this.id = id;
+        this.name = name;
+        this.type = type;
+        this.minRating = minRating;
+        this.maxRating = maxRating;
+        this.minPrice = minPrice;
+        this.maxPrice = maxPrice;
+        this.bestBefore = bestBefore;
+        this.filter = filter;
+        this.order = order;
+        this.limit = limit;
+    }
+
+    /**
+     * @return query matching every product
+     */
+    public static ProductQuery all() {
+        return ALL;
+    }
+
+    public ProductQuery id(int id) {
+        return new ProductQuery(id, name, type, minRating, maxRating, minPrice, maxPrice,
+                bestBefore, filter, order, limit);
+    }
+
+    /**
+     * @param name text the product name contains
+     */
+    public ProductQuery nameContains(String name) {
+        return new ProductQuery(id, name, type, minRating, maxRating, minPrice, maxPrice,
+                bestBefore, filter, order, limit);
+    }
+
+    /**
+     * @param type {@code Food.class} or {@code Drink.class}
+     */
+    public ProductQuery type(Class<? extends Product> type) {
+        return new ProductQuery(id, name, type, minRating, maxRating, minPrice, maxPrice,
+                bestBefore, filter, order, limit);
+    }
+
+    /**
+     * @param from lowest rating, inclusive
+     * @param to highest rating, inclusive
+     */
+    public ProductQuery rated(Rating from, Rating to) {
+        return new ProductQuery(id, name, type, from, to, minPrice, maxPrice,
+                bestBefore, filter, order, limit);
+    }
+
+    public ProductQuery ratedAtLeast(Rating rating) {
+        return rated(rating, Rating.FIVE_STAR);
+    }
+
+    /**
+     * @param from lowest price, inclusive, or null for no lower bound
+     * @param to highest price, exclusive, or null for no upper bound
+     */
+    public ProductQuery priced(BigDecimal from, BigDecimal to) {
+        return new ProductQuery(id, name, type, minRating, maxRating, from, to,
+                bestBefore, filter, order, limit);
+    }
+
+    /**
+     * @param date first date the products are not good for, only Food has
+     * a best before date
+     */
+    public ProductQuery bestBefore(LocalDate date) {
+        return new ProductQuery(id, name, type, minRating, maxRating, minPrice, maxPrice,
+                date, filter, order, limit);
+    }
+
+    /**
+     * @param condition additional condition, combined with earlier ones
+     */
+    public ProductQuery filter(Predicate<Product> condition) {
+        return new ProductQuery(id, name, type, minRating, maxRating, minPrice, maxPrice,
+                bestBefore, filter == null ? condition : filter.and(condition), order, limit);
+    }
+
+    public ProductQuery sortedBy(Comparator<Product> order) {
+        return new ProductQuery(id, name, type, minRating, maxRating, minPrice, maxPrice,
+                bestBefore, filter, order, limit);
+    }
+
+    /**
+     * @param limit maximum number of products returned
+     */
+    public ProductQuery limit(int limit) {
+        return new ProductQuery(id, name, type, minRating, maxRating, minPrice, maxPrice,
+                bestBefore, filter, order, limit);
+    }
+
+    /**
+     * @return whether the product meets all conditions of the query
+     */
+    public boolean test(Product product) {
+        return (id == null || product.getId() == id)
+                && (name == null || product.getName().contains(name))
+                && (type == null || type.isInstance(product))
+                && product.getRating().compareTo(minRating) >= 0
+                && product.getRating().compareTo(maxRating) <= 0
+                && (minPrice == null || product.getPrice().compareTo(minPrice) >= 0)
+                && (maxPrice == null || product.getPrice().compareTo(maxPrice) < 0)
+                && (bestBefore == null || product instanceof Food
+                && product.getBestBefore().isBefore(bestBefore))
+                && (filter == null || filter.test(product));
+    }
+
+    /**
+     * Applies the conditions, order and limit of the query
+     *
+     * @param products candidate products
+     * @return matching products in query order
+     */
+    public List<Product> collect(Stream<Product> products) {
+        Stream<Product> matches = products.filter(this::test);
+        if (order != null) {
+            matches = matches.sorted(order);
+        }
+        return matches.limit(limit).collect(Collectors.toList());
+    }
+
+    public Integer getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Class<? extends Product> getType() {
+        return type;
+    }
+
+    public Rating getMinRating() {
+        return minRating;
+    }
+
+    public Rating getMaxRating() {
+        return maxRating;
+    }
+
+    public BigDecimal getMinPrice() {
+        return minPrice;
+    }
+
+    public BigDecimal getMaxPrice() {
+        return maxPrice;
+    }
+
+    public LocalDate getBestBefore() {
+        return bestBefore;
+    }
+
+    public Comparator<Product> getOrder() {
+        return order;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    @Override
+    public String toString() {
+        return "ProductQuery{" + "id=" + id + ", name=" + name
+                + ", type=" + (type == null ? null : type.getSimpleName())
+                + ", rating=" + minRating + ".." + maxRating
+                + ", price=" + minPrice + ".." + maxPrice + ", bestBefore=" + bestBefore
+                + ", filter=" + (filter != null) + ", sorted=" + (order != null)
+                + ", limit=" + limit + '}';
+    }
+}
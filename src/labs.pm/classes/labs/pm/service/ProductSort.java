@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2023 bhagc
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.pm.service;
+
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.Locale;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import labs.pm.data.Product;
+import labs.pm.data.Rateable;
+
+/**
+ * Order of a product listing with a cursor marking a position in it.
+ * <br>
+ * Products are ordered by one key and then by id, so the order is total and
+ * a cursor holding the key and id of the last product of a page tells exactly
+ * where the next page starts, even when products were added or changed in the
+ * meantime.
+ *
+ * @author bhagc
+ */
+public final class ProductSort {
+
+    /**
+     * Product properties a listing can be sorted by
+     */
+    public enum Key {
+        ID(product -> product.getId(), Integer::valueOf),
+        NAME(Product::getName, text -> text),
+        PRICE(Product::getPrice, BigDecimal::new),
+        RATING(Product::getRating, text -> Rateable.convert(Integer.parseInt(text)));
+
+        private final Function<Product, Comparable<?>> extractor;
+        private final Function<String, Comparable<?>> parser;
+
+        Key(Function<Product, Comparable<?>> extractor, Function<String, Comparable<?>> parser) {
+            this.extractor = extractor;
+            this.parser = parser;
+        }
+    }
+
+    public static final ProductSort BY_ID = new ProductSort(Key.ID, false);
+    private final Key key;
+    private final boolean descending;
+    private final Comparator<Product> comparator;
+
+    public ProductSort(Key key, boolean descending) {
+        this.key = key;
+        this.descending = descending;
+        this.comparator = (first, second) -> compare(first, key(second), second.getId());
+    }
+
+    /**
+     * @param text key name, prefixed by {@code -} for descending order, for
+     * example {@code price} or {@code -rating}, null or empty for ids
+     * @return sort order
+     * @throws IllegalArgumentException if the key is not known
+     */
+    public static ProductSort parse(String text) {
+        if (text == null || text.isEmpty()) {
+            return BY_ID;
+        }
+        boolean descending = text.startsWith("-");
+        return new ProductSort(Key.valueOf(text.substring(descending ? 1 : 0).toUpperCase(Locale.ROOT)),
+                descending);
+    }
+
+    public Comparator<Product> comparator() {
+        return comparator;
+    }
+
+    /**
+     * @param last last product of a page
+     * @return opaque cursor of the position after that product
+     */
+    public String cursor(Product last) {
+        Object value = key == Key.RATING ? last.getRating().ordinal() : key(last);
+        String position = last.getId() + ":" + value;
+        return Base64.getUrlEncoder().withoutPadding()
+                .encodeToString(position.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @param cursor cursor returned by {@link #cursor(Product)}, null for the
+     * start of the listing
+     * @return condition true for products after the cursor
+     * @throws IllegalArgumentException if the cursor is not valid for this
+     * order
+     */
+    public Predicate<Product> after(String cursor) {
+        if (cursor == null || cursor.isEmpty()) {
+            return product -> true;
+        }
+        int id;
+        Comparable<?> value;
+        try {
+            String position = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+            int colon = position.indexOf(':');
+            id = Integer.parseInt(position.substring(0, colon));
+            value = key.parser.apply(position.substring(colon + 1));
+        } catch (RuntimeException ex) {
+            throw new IllegalArgumentException("Invalid cursor " + cursor);
+        }
+        return product -> compare(product, value, id) > 0;
+    }
+
+    /**
+     * Compares a product with a position given by key value and id
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private int compare(Product product, Comparable value, int id) {
+        int result = ((Comparable) key(product)).compareTo(value);
+        if (result == 0) {
+            result = Integer.compare(product.getId(), id);
+        }
+        return descending ? -result : result;
+    }
+
+    private Comparable<?> key(Product product) {
+        return key.extractor.apply(product);
+    }
+
+    @Override
+    public String toString() {
+        return (descending ? "-" : "") + key.name().toLowerCase(Locale.ROOT);
+    }
+}
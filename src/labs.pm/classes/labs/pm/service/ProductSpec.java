@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2023 bhagc
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.pm.service;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import labs.pm.data.Drink;
+import labs.pm.data.Food;
+import labs.pm.data.Product;
+import labs.pm.data.Rating;
+
+/**
+ * Validated description of a product to create in bulk, a Food when it has
+ * a best before date and a Drink otherwise.
+ *
+ * @author bhagc
+ */
+public final class ProductSpec {
+
+    private final int id;
+    private final String name;
+    private final BigDecimal price;
+    private final Rating rating;
+    private final LocalDate bestBefore;
+
+    /**
+     * @param id positive product id
+     * @param name product name, not blank and without commas or line breaks,
+     * which the stores use as separators
+     * @param price price, not negative
+     * @param rating initial rating
+     * @param bestBefore best before date of a Food or null for a Drink
+     * @throws IllegalArgumentException if a value is not valid
+     */
+    public ProductSpec(int id, String name, BigDecimal price, Rating rating, LocalDate bestBefore) {
+        if (id <= 0) {
+            throw new IllegalArgumentException("Invalid id " + id);
+        }
+        if (name == null || name.isBlank() || name.contains(",") || name.contains("\n") || name.contains("\r")) {
+            throw new IllegalArgumentException("Invalid name of product " + id);
+        }
+        if (price == null || price.signum() < 0) {
+            throw new IllegalArgumentException("Invalid price of product " + id);
+        }
+        if (rating == null) {
+            throw new IllegalArgumentException("Missing rating of product " + id);
+        }
+        this.id = id;
+        this.name = name;
+        this.price = price;
+        this.rating = rating;
+        this.bestBefore = bestBefore;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public BigDecimal getPrice() {
+        return price;
+    }
+
+    public Rating getRating() {
+        return rating;
+    }
+
+    /**
+     * @return best before date or null for a Drink
+     */
+    public LocalDate getBestBefore() {
+        return bestBefore;
+    }
+
+    public Product toProduct() {
+        return bestBefore == null ? new Drink(id, name, price, rating)
+                : new Food(id, name, price, rating, bestBefore);
+    }
+
+    @Override
+    public String toString() {
+        return "ProductSpec{" + "id=" + id + ", name=" + name + ", price=" + price
+                + ", rating=" + rating + ", bestBefore=" + bestBefore + '}';
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2023 bhagc
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.pm.service;
+
+import labs.pm.data.Rating;
+import labs.pm.data.Review;
+
+/**
+ * Validated review of a product to apply in bulk.
+ *
+ * @author bhagc
+ */
+public final class ReviewSpec {
+
+    private final int id;
+    private final Rating rating;
+    private final String comments;
+
+    /**
+     * @param id id of the reviewed product
+     * @param rating rating given by the review
+     * @param comments comments, without line breaks, which the stores use as
+     * separators
+     * @throws IllegalArgumentException if a value is not valid
+     */
+    public ReviewSpec(int id, Rating rating, String comments) {
+        if (id <= 0) {
+            throw new IllegalArgumentException("Invalid id " + id);
+        }
+        if (rating == null) {
+            throw new IllegalArgumentException("Missing rating of a review of product " + id);
+        }
+        if (comments == null || comments.contains("\n") || comments.contains("\r")) {
+            throw new IllegalArgumentException("Invalid comments of a review of product " + id);
+        }
+        this.id = id;
+        this.rating = rating;
+        this.comments = comments;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public Rating getRating() {
+        return rating;
+    }
+
+    public String getComments() {
+        return comments;
+    }
+
+    public Review toReview() {
+        return new Review(rating, comments);
+    }
+
+    @Override
+    public String toString() {
+        return "ReviewSpec{" + "id=" + id + ", rating=" + rating + ", comments=" + comments + '}';
+    }
+}
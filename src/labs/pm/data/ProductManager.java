@@ -16,24 +16,30 @@
  */
 package labs.pm.data;
 
+import java.io.BufferedWriter;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.math.BigDecimal;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
 import java.text.MessageFormat;
 import java.text.NumberFormat;
 import java.text.ParseException;
+import java.time.Duration;
 import java.time.LocalDate;
 import java.time.format.DateTimeFormatter;
 import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
@@ -41,12 +47,17 @@ import java.util.Locale;
 import java.util.Map;
 import java.util.ResourceBundle;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.function.Predicate;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
  *
@@ -55,6 +66,7 @@ import java.util.stream.Collectors;
 public class ProductManager {
 
     private static final Logger logger = Logger.getLogger(ProductManager.class.getName());
+    private static final int REPORT_CHUNK = 1024;
     private final ResourceBundle config = ResourceBundle.getBundle("labs.pm.data.config");
     private final MessageFormat reviewFormat = new MessageFormat(config.getString("review.data.format"));
     private final MessageFormat productFormat = new MessageFormat(config.getString("product.data.format"));
@@ -65,7 +77,7 @@ public class ProductManager {
     private final ReentrantReadWriteLock readWriteLock = new ReentrantReadWriteLock();
     private final Lock readLock = readWriteLock.readLock();
     private final Lock writeLock = readWriteLock.writeLock();
-    private Map<Product, List<Review>> products;
+    private ProductTable products;
     private static final Map<String, ResourceFormatter> formatters
             = Map.of("en-US", new ResourceFormatter(Locale.US),
                     "en-GB", new ResourceFormatter(Locale.UK),
@@ -78,7 +90,7 @@ public class ProductManager {
 
     private ProductManager() {
         // this(locale.toLanguageTag());
-        products = new HashMap<>();
+        products = new ProductTable();
         loadAllData();
     }
 
@@ -98,10 +110,10 @@ public class ProductManager {
         try {
             writeLock.lock();
             product = new Food(id, name, price, rating, bestBefore);
-            if (!this.products.containsKey(product)) {
+            if (!this.products.contains(id)) {
                 addProductToFile(product);
+                this.products.add(product, List.of());
             }
-            this.products.putIfAbsent(product, new ArrayList<>());
         } catch (Exception ex) {
             logger.log(Level.INFO, "Error in adding Product", ex.getMessage());
             return null;
@@ -116,10 +128,10 @@ public class ProductManager {
         try {
             writeLock.lock();
             product = new Drink(id, name, price, rating);
-            if (!this.products.containsKey(product)) {
+            if (!this.products.contains(id)) {
                 addProductToFile(product);
+                this.products.add(product, List.of());
             }
-            this.products.putIfAbsent(product, new ArrayList<>());
         } catch (Exception ex) {
             logger.log(Level.INFO, "Error in adding Product", ex.getMessage());
             return null;
@@ -188,11 +200,11 @@ public class ProductManager {
         try {
             readLock.lock();
             ResourceFormatter formatter = formatters.getOrDefault(languageTag, formatters.get("en-IN"));
-            return products.keySet().stream().collect(
+            return products.products().collect(
                     Collectors.groupingBy(p -> p.getRating().getStars(),
                             Collectors.collectingAndThen(
                                     Collectors.summingDouble(p -> p.getDiscount().doubleValue()),
-                                    discount -> formatter.currencyFormat.format(discount))));
+                                    discount -> formatter.currencyFormat.get().format(discount))));
         } finally {
             readLock.unlock();
         }
@@ -212,174 +224,401 @@ public class ProductManager {
 
     private Product reviewProduct(Product product, Rating rating, String comments) {
 
-        List<Review> reviews = this.products.get(product);
-        this.products.remove(product);
-        reviews.add(new Review(rating, comments));
-        addReviewToFile(product.getId(), new Review(rating, comments));
+        int slot = this.products.slotOf(product.getId());
+        Review review = new Review(rating, comments);
+        this.products.addReview(slot, review);
+        addReviewToFile(product.getId(), review);
 
-        product = product.applyRating(Rateable
-                .convert((int) Math.round(
-                        reviews.stream()
-                                .mapToInt(r -> r.getRating().ordinal())
-                                .average().orElse(0))));
+        RatingSummary summary = this.products.summary(slot).add(rating);
+        this.products.rate(slot, summary);
 
-        this.products.put(product, reviews);
+        return this.products.product(slot);
 
-        return product;
+    }
 
+    public RatingSummary getRatingSummary(int id) throws ProductManagerException {
+        try {
+            readLock.lock();
+            return products.summary(products.slotOf(findProduct(id).getId()));
+        } finally {
+            readLock.unlock();
+        }
     }
 
     public Product findProduct(int id) throws ProductManagerException {
         try {
             readLock.lock();
-            return products.keySet()
-                    .stream()
-                    .filter(p -> p.getId() == id)
-                    .findFirst()
-                    .orElseThrow(() -> new ProductManagerException("Product with this id: " + id + " is not Found"));
+            Product product = products.get(id);
+            if (product == null) {
+                throw new ProductManagerException("Product with this id: " + id + " is not Found");
+            }
+            return product;
         } finally {
             readLock.unlock();
         }
     }
 
+    /**
+     * Writes the report of a product and its reviews for a client.
+     * <br>
+     * The product and a copy of its reviews, which are kept in report order,
+     * are taken under the read lock, the report is then written outside of it
+     * to a temporary file that replaces the previous report of the client in
+     * one move, so readers never see a partial or stale tail of an old report.
+     */
     public void printProductReport(int id, String languageTag, String client) {
-
+        Product product;
+        List<Review> reviews;
         try {
             readLock.lock();
-            printProductReport(findProduct(id), languageTag, client);
+            product = findProduct(id);
+            reviews = products.copyReviews(products.slotOf(id));
         } catch (ProductManagerException ex) {
             logger.log(Level.INFO, ex.getMessage());
+            return;
         } finally {
             readLock.unlock();
         }
+        printProductReport(product, reviews, languageTag, client);
     }
 
-    private void printProductReport(Product product, String languageTag, String client) {
-        ResourceFormatter formatter = formatters.getOrDefault(languageTag, formatters.get("en-IN"));
-        if (!Files.exists(reportsFolder)) {
+    private void printProductReport(Product product, List<Review> reviews, String languageTag, String client) {
+        try {
+            Files.createDirectories(reportsFolder);
+            writeReport(product, reviews, formatters.getOrDefault(languageTag, formatters.get("en-IN")), client);
+        } catch (IOException ex) {
+            logger.log(Level.WARNING, "Error printing report to File {0}", ex.getMessage());
+        }
+    }
+
+    /**
+     * Writes the report of every product in every supported locale, to the
+     * files of the client suffixed with the language tag.
+     * <br>
+     * The products and their reviews are copied under the read lock
+     * {@value #REPORT_CHUNK} at a time, so writers only wait for the copy of
+     * one chunk. Every chunk is consistent, the batch is made of the products
+     * there were when it started, each with its reviews at the time its chunk
+     * was copied. Reports of a chunk are written by a fork/join pool with one
+     * worker per core, each report streamed to its file, so memory use is
+     * bounded by the copy of a chunk and does not grow with the catalog or
+     * the number of locales.
+     *
+     * @param client name of the client the report files are named after
+     * @return number of reports written and failed, and the time taken
+     */
+    public ReportSummary printAllReports(String client) {
+        ProductTable table;
+        int size;
+        try {
+            readLock.lock();
+            table = products;
+            size = table.size();
+        } finally {
+            readLock.unlock();
+        }
+        long start = System.nanoTime();
+        AtomicLong written = new AtomicLong();
+        AtomicLong failed = new AtomicLong();
+        Map<Integer, String> failures = new ConcurrentHashMap<>();
+        try {
+            Files.createDirectories(reportsFolder);
+        } catch (IOException ex) {
+            logger.log(Level.WARNING, "Error creating reports folder {0}", ex.getMessage());
             try {
-                Files.createDirectories(reportsFolder);
-            } catch (IOException ex) {
-                logger.log(Level.INFO, ex.getMessage());
+                readLock.lock();
+                for (int slot = 0; slot < Math.min(size, ReportSummary.MAX_FAILURES); slot++) {
+                    failures.put(table.product(slot).getId(), String.valueOf(ex.getMessage()));
+                }
+            } finally {
+                readLock.unlock();
+            }
+            return new ReportSummary(size, 0, size, failures, Duration.ofNanos(System.nanoTime() - start));
+        }
+        ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        try {
+            for (int from = 0; from < size; from += REPORT_CHUNK) {
+                List<Map.Entry<Product, List<Review>>> chunk = new ArrayList<>(Math.min(REPORT_CHUNK, size - from));
+                try {
+                    readLock.lock();
+                    for (int slot = from; slot < Math.min(from + REPORT_CHUNK, size); slot++) {
+                        chunk.add(Map.entry(table.product(slot), table.copyReviews(slot)));
+                    }
+                } finally {
+                    readLock.unlock();
+                }
+                pool.invoke(new ReportTask(chunk, 0, chunk.size(), client, written, failed, failures));
+            }
+        } finally {
+            pool.shutdown();
+        }
+        ReportSummary summary = new ReportSummary(size, written.get(), failed.get(), failures,
+                Duration.ofNanos(System.nanoTime() - start));
+        logger.log(Level.INFO, "Printed {0} reports of {1} products, {2} failed, {3} reports/s",
+                new Object[]{summary.getWritten(), summary.getProducts(), summary.getFailed(),
+                    String.format("%.0f", summary.getThroughput())});
+        return summary;
+    }
+
+    /**
+     * Writes the reports of a range of the catalog, splitting it in halves
+     * until it is small enough for one worker.
+     */
+    @SuppressWarnings("serial")
+    private class ReportTask extends RecursiveAction {
+
+        private static final int THRESHOLD = 32;
+        private final List<Map.Entry<Product, List<Review>>> catalog;
+        private final int from;
+        private final int to;
+        private final String client;
+        private final AtomicLong written;
+        private final AtomicLong failed;
+        private final Map<Integer, String> failures;
+
+        ReportTask(List<Map.Entry<Product, List<Review>>> catalog, int from, int to, String client,
+                AtomicLong written, AtomicLong failed, Map<Integer, String> failures) {
+            this.catalog = catalog;
+            this.from = from;
+            this.to = to;
+            this.client = client;
+            this.written = written;
+            this.failed = failed;
+            this.failures = failures;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > THRESHOLD) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new ReportTask(catalog, from, middle, client, written, failed, failures),
+                        new ReportTask(catalog, middle, to, client, written, failed, failures));
+                return;
+            }
+            for (Map.Entry<Product, List<Review>> entry : catalog.subList(from, to)) {
+                for (Map.Entry<String, ResourceFormatter> formatter : formatters.entrySet()) {
+                    try {
+                        writeReport(entry.getKey(), entry.getValue(), formatter.getValue(),
+                                client + "-" + formatter.getKey());
+                        written.incrementAndGet();
+                    } catch (IOException | RuntimeException ex) {
+                        failed.incrementAndGet();
+                        if (failures.size() < ReportSummary.MAX_FAILURES) {
+                            failures.putIfAbsent(entry.getKey().getId(),
+                                    formatter.getKey() + ": " + ex.getMessage());
+                        }
+                    }
+                }
             }
         }
-        Path productFile = reportsFolder.resolve(
+    }
+
+    /**
+     * Streams a report through a buffered channel writer to a temporary file
+     * that then replaces the report of the client in one move. The file is
+     * not forced to disk, a report can be written again from the catalog.
+     */
+    private void writeReport(Product product, List<Review> reviews, ResourceFormatter formatter, String client)
+            throws IOException {
+        Path reportFile = reportsFolder.resolve(
                 MessageFormat.format(config.getString("report.file"),
                         product.getId(), client));
-//        StringBuilder sb=new StringBuilder();
-        try (PrintWriter out = new PrintWriter(new OutputStreamWriter(
-                Files.newOutputStream(productFile, StandardOpenOption.CREATE),
-                Charset.forName("UTF-8")))) {
- 
-            if (products.containsKey(product)) {
-                product = findProduct(product.getId());
+        Path tempFile = Files.createTempFile(reportsFolder, reportFile.getFileName().toString(), ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(tempFile,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                    BufferedWriter out = new BufferedWriter(
+                            Channels.newWriter(channel, StandardCharsets.UTF_8), 8192)) {
                 out.append(formatter.formatProduct(product))
                         .append(System.lineSeparator());
-                //   sb.append(formatter.formatProduct(product)).append("\n");
-                List<Review> reviews = this.products.get(product);
-                Collections.sort(reviews);
                 if (reviews.isEmpty()) {
-                    //      sb.append(formatter.getText("no.reviews")).append("\n");
                     out.append(formatter.getText("no.reviews"))
                             .append(System.lineSeparator());
                 } else {
-//            for (Review review : reviews) {
-//                sb.append(formatter.formatReview(review)).append("\n");
-//            }
-                    reviews.stream()
-                            .forEach(r
-                                    -> //  sb.append(formatter.formatReview(r)).append("\n");
-                                    out.append(formatter.formatReview(r))
-                                    .append(System.lineSeparator()));
+                    for (Review review : reviews) {
+                        out.append(formatter.formatReview(review))
+                                .append(System.lineSeparator());
+                    }
                 }
-            } else {
-                out.append(formatter.getText("no.product"))
-                        .append(System.lineSeparator());
-//                sb.append(formatter.getText("no.product"))
-//                        .append("\n");
             }
-        } catch (IOException | ProductManagerException ex) {
-            logger.log(Level.WARNING, "Error printing report to File{0}", ex.getMessage());
+            try {
+                Files.move(tempFile, reportFile,
+                        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException ex) {
+                Files.move(tempFile, reportFile, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException | RuntimeException ex) {
+            Files.deleteIfExists(tempFile);
+            throw ex;
         }
     }
 
-    public synchronized void printProducts(Predicate<Product> filter, Comparator<Product> sorter, String languageTag) {
-        //List<Product> list = new ArrayList<>(products.keySet());
-        //list.sort(sorter);
+    /**
+     * Prints the products meeting a condition in the given order.
+     * <br>
+     * Only the filtered products are copied under the read lock, sorting and
+     * printing happen outside of it, so listings run concurrently and do not
+     * hold up reviews.
+     */
+    public void printProducts(Predicate<Product> filter, Comparator<Product> sorter, String languageTag) {
+        ResourceFormatter formatter = formatters.getOrDefault(languageTag, formatters.get("en-IN"));
+        List<Product> list;
         try {
             readLock.lock();
-            ResourceFormatter formatter = formatters.getOrDefault(languageTag, formatters.get("en-IN"));
-            StringBuilder sb = new StringBuilder();
             if (products.isEmpty()) {
-                sb.append(formatter.getText("no.product")).append("\n");
+                list = null;
             } else {
-                products.keySet().stream()
-                        .sorted(sorter)
+                list = products.products()
                         .filter(filter)
-                        .forEach(p -> sb.append(formatter.formatProduct(p))
-                        .append("\n"));
+                        .collect(Collectors.toList());
             }
-            System.out.println(sb);
         } finally {
             readLock.unlock();
         }
+        if (list == null) {
+            System.out.println(formatter.getText("no.product"));
+            return;
+        }
+        list.sort(sorter);
+        PrintWriter out = new PrintWriter(System.out);
+        list.forEach(p -> out.println(formatter.formatProduct(p)));
+        out.println();
+        out.flush();
     }
 
+    /**
+     * Restores the catalog from the snapshot left by {@link #dumpData()}.
+     * <br>
+     * The snapshot is decoded before taking the write lock, which is held only
+     * to swap in the restored catalog, and deleted once restored. A snapshot
+     * that cannot be read is renamed with a {@code .rejected} suffix, so it is
+     * not tried again, and the next one tried. This includes the dumps written
+     * with Java serialization before {@link SnapshotCodec}, which are not
+     * read.
+     *
+     * @return copy of the restored products and their reviews
+     */
     public Map<Product, List<Review>> restoreData() {
-        try {
-            Path tempFile = Files.list(tempFolder)
+        List<Path> tempFiles = List.of();
+        try (Stream<Path> files = Files.list(tempFolder)) {
+            tempFiles = files
                     .filter(path -> path.getFileName().toString().endsWith(".tmp"))
-                    .findFirst().orElseThrow();
-            try (ObjectInputStream in = new ObjectInputStream(
-                    Files.newInputStream(tempFile, StandardOpenOption.DELETE_ON_CLOSE))) {
-                readLock.lock();
-                products = (HashMap) in.readObject();
-            }
-        } catch (IOException | ClassNotFoundException ex) {
+                    .collect(Collectors.toList());
+        } catch (IOException ex) {
             logger.log(Level.WARNING, ex.getMessage());
+        }
+        for (Path tempFile : tempFiles) {
+            ProductTable restored;
+            try (InputStream in = Files.newInputStream(tempFile)) {
+                restored = SnapshotCodec.read(in);
+            } catch (IOException ex) {
+                logger.log(Level.WARNING, "Rejecting snapshot " + tempFile, ex);
+                rejectSnapshot(tempFile);
+                continue;
+            }
+            try {
+                writeLock.lock();
+                products = restored;
+                summarizeRatings();
+            } finally {
+                writeLock.unlock();
+            }
+            try {
+                Files.delete(tempFile);
+            } catch (IOException ex) {
+                logger.log(Level.WARNING, ex.getMessage());
+            }
+            break;
+        }
+        try {
+            readLock.lock();
+            Map<Product, List<Review>> copy = new HashMap<>();
+            for (int slot = 0; slot < products.size(); slot++) {
+                copy.put(products.product(slot), products.copyReviews(slot));
+            }
+            return copy;
         } finally {
             readLock.unlock();
         }
-        return products;
     }
 
+    private void rejectSnapshot(Path tempFile) {
+        try {
+            Files.move(tempFile, tempFile.resolveSibling(tempFile.getFileName() + ".rejected"),
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException ex) {
+            logger.log(Level.WARNING, ex.getMessage());
+        }
+    }
+
+    /**
+     * Moves the catalog out to a binary snapshot, see {@link SnapshotCodec}.
+     * <br>
+     * The catalog is detached under the write lock and written after it is
+     * released, so writers only wait for the swap. The snapshot is written
+     * to a partial file renamed once complete, so {@link #restoreData()}
+     * never reads a partial snapshot, and put back if it cannot be written.
+     */
     public void dumpData() {
+        ProductTable dumped;
+        try {
+            writeLock.lock();
+            dumped = products;
+            products = new ProductTable();
+        } finally {
+            writeLock.unlock();
+        }
         try {
             if (Files.notExists(tempFolder)) {
                 Files.createDirectories(tempFolder);
             }
-
             Path tempFile = tempFolder.resolve(
                     MessageFormat.format(config.getString("temp.file"), "TEMP"
                             + Math.random()));
-            try (ObjectOutputStream out = new ObjectOutputStream(
-                    Files.newOutputStream(tempFile, StandardOpenOption.CREATE))) {
-                writeLock.lock();
-                out.writeObject(products);
-                products = new HashMap<>();
+            Path partFile = tempFile.resolveSibling(tempFile.getFileName() + ".part");
+            try (OutputStream out = Files.newOutputStream(partFile,
+                    StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                SnapshotCodec.write(out, dumped);
             }
+            Files.move(partFile, tempFile, StandardCopyOption.ATOMIC_MOVE);
         } catch (IOException ex) {
             logger.log(Level.WARNING, ex.getMessage());
-        } finally {
-            writeLock.unlock();
+            try {
+                writeLock.lock();
+                for (int slot = 0; slot < dumped.size(); slot++) {
+                    products.add(dumped.product(slot), dumped.reviews(slot));
+                }
+                summarizeRatings();
+            } finally {
+                writeLock.unlock();
+            }
         }
     }
 
     private void loadAllData() {
         try {
 
-            products = Files.list(dataFolder)
+            List<Product> loaded = Files.list(dataFolder)
                     .filter(path -> path.getFileName().toString().contains("product"))
                     .map(path -> loadProduct(path))
                     .filter(product -> product != null)
-                    .collect(Collectors.toMap(product -> product,
-                            product -> loadReviews(product)));
-
+                    .collect(Collectors.toList());
+            products = new ProductTable(loaded.size(), new CommentStore());
+            for (Product product : loaded) {
+                products.add(product, loadReviews(product));
+            }
+            summarizeRatings();
         } catch (IOException ex) {
             logger.log(Level.WARNING, ex.getMessage());
         }
     }
 
+    private void summarizeRatings() {
+        for (int slot = 0; slot < products.size(); slot++) {
+            products.rate(slot, RatingSummary.of(products.reviews(slot)));
+        }
+    }
+
     private Product loadProduct(Path file) {
         Product product = null;
         try {
@@ -395,14 +634,11 @@ public class ProductManager {
     }
 
     private List<Review> loadReviews(Product product) {
-        List<Review> reviews = null;
+        List<Review> reviews = List.of();
         Path file = dataFolder.resolve(
                 MessageFormat.format(config.getString("reviews.data.file"),
                         product.getId()));
-        if (Files.notExists(file)) {
-            reviews = new ArrayList<>();
-
-        } else {
+        if (Files.exists(file)) {
             try {
                 reviews = Files.lines(file, Charset.forName("UTF-8"))
                         .map(text -> parseReview(text)).filter(review -> review != null)
@@ -461,13 +697,17 @@ public class ProductManager {
 
         private final Locale locale;
         private final ResourceBundle resource;
-        private final NumberFormat currencyFormat;
+        private final ThreadLocal<NumberFormat> currencyFormat;
+        private final ThreadLocal<MessageFormat> productFormat;
+        private final ThreadLocal<MessageFormat> reviewFormat;
         private final DateTimeFormatter dateFormat;
 
         public ResourceFormatter(Locale locale) {
             this.locale = locale;
             this.resource = ResourceBundle.getBundle("labs.pm.data.resources");
-            this.currencyFormat = NumberFormat.getCurrencyInstance(this.locale);
+            this.currencyFormat = ThreadLocal.withInitial(() -> NumberFormat.getCurrencyInstance(locale));
+            this.productFormat = ThreadLocal.withInitial(() -> new MessageFormat(resource.getString("product")));
+            this.reviewFormat = ThreadLocal.withInitial(() -> new MessageFormat(resource.getString("review")));
             // this.currencyFormat.setCurrency(Currency.getInstance(locale));
 //            this.dateFormat = DateTimeFormatter.ofLocalizedDateTime(FormatStyle.MEDIUM)
 //                    .localizedBy(locale);
@@ -475,16 +715,16 @@ public class ProductManager {
         }
 
         public String formatProduct(Product product) {
-            return MessageFormat.format(this.resource.getString("product"),
-                    product.getId(), product.getName(),
-                    currencyFormat.format(product.getPrice()),
-                    product.getRating().getStars(),
-                    product.getBestBefore().format(dateFormat));
+            return productFormat.get().format(new Object[]{
+                product.getId(), product.getName(),
+                currencyFormat.get().format(product.getPrice()),
+                product.getRating().getStars(),
+                product.getBestBefore().format(dateFormat)});
         }
 
         public String formatReview(Review review) {
-            return MessageFormat.format(this.resource.getString("review"),
-                    review.getRating().getStars(), review.getComments());
+            return reviewFormat.get().format(new Object[]{
+                review.getRating().getStars(), review.getComments()});
         }
 
         public String getText(String key) {
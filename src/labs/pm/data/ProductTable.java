@@ -0,0 +1,310 @@
+/*
+ * Copyright (C) 2023 bhagc
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.pm.data;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * Catalog of {@code ProductManager} kept in columns of primitive arrays, one
+ * slot per product, in place of a map of product objects to review lists.
+ * <br>
+ * A slot holds the id, the price as a fixed-point long and its scale, which
+ * are cents for prices with two decimals, the rating as a byte, the best
+ * before date of a Food as an epoch day and the offset of the name in an
+ * arena of UTF-8 bytes shared by all products, along with the reviews, made
+ * on the first review, and the rating summary. Review comments are kept once
+ * for the table in a {@link CommentStore}. Products are made from their
+ * slot when asked for and are not kept. Products a slot cannot hold, like a
+ * price beyond a long or a Food without a date, are kept as objects.
+ * <br>
+ * Ids are found through an open addressing table of slots hashed by
+ * {@link IntHash}. Products are not removed, a table is replaced as a whole.
+ * <br>
+ * Not thread safe, {@code ProductManager} changes it under its write lock.
+ *
+ * @author bhagc
+ */
+final class ProductTable {
+
+    private static final Rating[] RATINGS = Rating.values();
+    private static final int DRINK = Integer.MIN_VALUE;
+    private static final byte OBJECT = Byte.MIN_VALUE;
+    private static final int INITIAL_NAMES = 256;
+    private static final int MAX_NAMES = Integer.MAX_VALUE - 8;
+    private int[] ids;
+    private long[] prices;
+    private byte[] scales;
+    private byte[] ratings;
+    private int[] bestBefore;
+    private int[] nameOffsets;
+    private byte[] names;
+    private ReviewList[] reviews;
+    private RatingSummary[] summaries;
+    private final Map<Integer, Product> objects = new HashMap<>(0);
+    private final CommentStore comments;
+    private int[] index;
+    private int size;
+
+    ProductTable() {
+        this(16, new CommentStore());
+    }
+
+    /**
+     * @param capacity number of products to make room for, up to 16M, the
+     * table grows past it. The arena of the names starts small and grows by
+     * half as names are added, so it is sized by the names and not by a
+     * guessed length per product.
+     * @param comments store of the review comments
+     */
+    ProductTable(int capacity, CommentStore comments) {
+        this.comments = comments;
+        capacity = Math.min(Math.max(capacity, 16), 1 << 24);
+        ids = new int[capacity];
+        prices = new long[capacity];
+        scales = new byte[capacity];
+        ratings = new byte[capacity];
+        bestBefore = new int[capacity];
+        nameOffsets = new int[capacity + 1];
+        names = new byte[INITIAL_NAMES];
+        reviews = new ReviewList[capacity];
+        summaries = new RatingSummary[capacity];
+        index = new int[Integer.highestOneBit(capacity * 2 - 1) << 1];
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return slot of the product with the id or -1 when there is none
+     */
+    int slotOf(int id) {
+        int mask = index.length - 1;
+        for (int i = IntHash.slot(id, mask);; i = IntHash.next(i, mask)) {
+            int slot = index[i] - 1;
+            if (slot < 0 || ids[slot] == id) {
+                return slot;
+            }
+        }
+    }
+
+    boolean contains(int id) {
+        return slotOf(id) >= 0;
+    }
+
+    /**
+     * @return product with the id or null when there is none
+     */
+    Product get(int id) {
+        int slot = slotOf(id);
+        return slot < 0 ? null : product(slot);
+    }
+
+    /**
+     * @return new product object of a slot
+     */
+    Product product(int slot) {
+        Rating rating = RATINGS[ratings[slot]];
+        if (scales[slot] == OBJECT) {
+            return objects.get(slot).applyRating(rating);
+        }
+        String name = new String(names, nameOffsets[slot], nameOffsets[slot + 1] - nameOffsets[slot],
+                StandardCharsets.UTF_8);
+        BigDecimal price = BigDecimal.valueOf(prices[slot], scales[slot]);
+        return bestBefore[slot] == DRINK
+                ? new Drink(ids[slot], name, price, rating)
+                : new Food(ids[slot], name, price, rating, LocalDate.ofEpochDay(bestBefore[slot]));
+    }
+
+    /**
+     * @return reviews of a slot in review order, changed by
+     * {@link #addReview}
+     */
+    List<Review> reviews(int slot) {
+        return reviews[slot] == null ? List.of() : reviews[slot];
+    }
+
+    /**
+     * @return reviews of a slot that do not change with it and look their
+     * comments up only when read, so they are copied under a lock and read
+     * after it is released
+     */
+    List<Review> copyReviews(int slot) {
+        return reviews[slot] == null ? List.of() : reviews[slot].copy();
+    }
+
+    CommentStore comments() {
+        return comments;
+    }
+
+    RatingSummary summary(int slot) {
+        return summaries[slot] == null ? RatingSummary.EMPTY : summaries[slot];
+    }
+
+    void addReview(int slot, Review review) {
+        if (reviews[slot] == null) {
+            reviews[slot] = new ReviewList(comments);
+        }
+        reviews[slot].add(review);
+    }
+
+    /**
+     * Adds a review of a comment already in the store of the table
+     */
+    void addReview(int slot, Rating rating, int comment) {
+        if (reviews[slot] == null) {
+            reviews[slot] = new ReviewList(comments);
+        }
+        reviews[slot].add(rating, comment);
+    }
+
+    /**
+     * Sets the rating summary of a slot and, once it has reviews, the rating
+     * of its product to the rating of the summary
+     */
+    void rate(int slot, RatingSummary summary) {
+        summaries[slot] = summary == RatingSummary.EMPTY ? null : summary;
+        if (summary.getCount() > 0) {
+            ratings[slot] = (byte) summary.getRating().ordinal();
+        }
+    }
+
+    /**
+     * Adds a product unless there is one with its id
+     *
+     * @param product product to add
+     * @param reviews reviews of the product, kept if a {@link ReviewList} of
+     * the comments of the table
+     * @return slot of the product with the id
+     */
+    int add(Product product, List<Review> reviews) {
+        int slot = slotOf(product.getId());
+        if (slot >= 0) {
+            return slot;
+        }
+        if (size == ids.length) {
+            grow();
+        }
+        slot = size;
+        ids[slot] = product.getId();
+        ratings[slot] = (byte) product.getRating().ordinal();
+        if (!encode(slot, product)) {
+            scales[slot] = OBJECT;
+            nameOffsets[slot + 1] = nameOffsets[slot];
+            objects.put(slot, product);
+        }
+        if (!reviews.isEmpty()) {
+            this.reviews[slot] = reviews instanceof ReviewList list && list.comments() == comments
+                    ? list : new ReviewList(comments, reviews);
+        }
+        size++;
+        if (size * 2 > index.length) {
+            index = new int[index.length * 2];
+            for (int i = 0; i < size; i++) {
+                insert(i);
+            }
+        } else {
+            insert(slot);
+        }
+        return slot;
+    }
+
+    /**
+     * @return products in the order they were added
+     */
+    Stream<Product> products() {
+        return IntStream.range(0, size).mapToObj(this::product);
+    }
+
+    /**
+     * Stores the price, date and name of a product in the columns of a slot
+     *
+     * @return false if the product cannot be held by the columns
+     */
+    private boolean encode(int slot, Product product) {
+        BigDecimal price = product.getPrice();
+        String name = product.getName();
+        if (price == null || name == null || price.scale() <= OBJECT || price.scale() > Byte.MAX_VALUE) {
+            return false;
+        }
+        BigInteger unscaled = price.unscaledValue();
+        if (unscaled.bitLength() >= Long.SIZE) {
+            return false;
+        }
+        int date;
+        if (product.getClass() == Drink.class) {
+            date = DRINK;
+        } else if (product.getClass() == Food.class && product.getBestBefore() != null) {
+            long epochDay = product.getBestBefore().toEpochDay();
+            if (epochDay <= DRINK || epochDay > Integer.MAX_VALUE) {
+                return false;
+            }
+            date = (int) epochDay;
+        } else {
+            return false;
+        }
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        int offset = nameOffsets[slot];
+        if (bytes.length > MAX_NAMES - offset) {
+            return false;
+        }
+        if (offset + bytes.length > names.length) {
+            names = Arrays.copyOf(names, (int) Math.min(MAX_NAMES,
+                    Math.max(offset + bytes.length, names.length + (long) (names.length >> 1))));
+        }
+        System.arraycopy(bytes, 0, names, offset, bytes.length);
+        nameOffsets[slot + 1] = offset + bytes.length;
+        prices[slot] = unscaled.longValue();
+        scales[slot] = (byte) price.scale();
+        bestBefore[slot] = date;
+        return true;
+    }
+
+    private void insert(int slot) {
+        int mask = index.length - 1;
+        int i = IntHash.slot(ids[slot], mask);
+        while (index[i] != 0) {
+            i = IntHash.next(i, mask);
+        }
+        index[i] = slot + 1;
+    }
+
+    private void grow() {
+        int capacity = ids.length + (ids.length >> 1);
+        ids = Arrays.copyOf(ids, capacity);
+        prices = Arrays.copyOf(prices, capacity);
+        scales = Arrays.copyOf(scales, capacity);
+        ratings = Arrays.copyOf(ratings, capacity);
+        bestBefore = Arrays.copyOf(bestBefore, capacity);
+        nameOffsets = Arrays.copyOf(nameOffsets, capacity + 1);
+        reviews = Arrays.copyOf(reviews, capacity);
+        summaries = Arrays.copyOf(summaries, capacity);
+    }
+}
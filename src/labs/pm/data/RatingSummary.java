@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2023 bhagc
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.pm.data;
+
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * {@code RatingSummary} is the running aggregate of the reviews of a product.
+ * <br>
+ * It keeps the number of reviews, the sum of their stars and how many reviews
+ * gave each {@link Rating}, so adding a review updates the average rating in
+ * constant time instead of re-averaging every review.
+ * <br>
+ * Instances are immutable, {@link #add(Rating) add} returns a new summary.
+ * <br>
+ * The legacy tree under {@code src/labs} is built on its own as module
+ * {@code labs.pm}, so it keeps its own copy of this class. The copy of the
+ * modular tree in {@code src/labs.pm} is the one the services use.
+ *
+ * @author bhagc
+ */
+public final class RatingSummary implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+    private static final Rating[] RATINGS = Rating.values();
+
+    /**
+     * Summary of a product without reviews
+     */
+    public static final RatingSummary EMPTY = new RatingSummary(new int[RATINGS.length], 0, 0);
+
+    private final int[] histogram;
+    private final long sum;
+    private final int count;
+
+    private RatingSummary(int[] histogram, long sum, int count) {
+        this.histogram = histogram;
+        this.sum = sum;
+        this.count = count;
+    }
+
+    public static RatingSummary of(Collection<Review> reviews) {
+        int[] histogram = new int[RATINGS.length];
+        long sum = 0;
+        for (Review review : reviews) {
+            histogram[review.getRating().ordinal()]++;
+            sum += review.getRating().ordinal();
+        }
+        return new RatingSummary(histogram, sum, reviews.size());
+    }
+
+    /**
+     * @param histogram number of reviews per {@link Rating} ordinal
+     * @return summary of reviews with the given rating counts
+     */
+    public static RatingSummary of(int[] histogram) {
+        int[] copy = new int[RATINGS.length];
+        long sum = 0;
+        int count = 0;
+        for (int i = 0; i < copy.length; i++) {
+            copy[i] = histogram[i];
+            sum += (long) i * histogram[i];
+            count += histogram[i];
+        }
+        return new RatingSummary(copy, sum, count);
+    }
+
+    public RatingSummary add(Rating rating) {
+        int[] next = histogram.clone();
+        next[rating.ordinal()]++;
+        return new RatingSummary(next, sum + rating.ordinal(), count + 1);
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public int getCount(Rating rating) {
+        return histogram[rating.ordinal()];
+    }
+
+    public double getAverage() {
+        return count == 0 ? 0 : (double) sum / count;
+    }
+
+    /**
+     * @return average of the reviews rounded to the nearest {@link Rating}
+     */
+    public Rating getRating() {
+        return Rateable.convert((int) Math.round(getAverage()));
+    }
+
+    public Map<Rating, Integer> getHistogram() {
+        Map<Rating, Integer> map = new EnumMap<>(Rating.class);
+        for (Rating rating : RATINGS) {
+            map.put(rating, histogram[rating.ordinal()]);
+        }
+        return Collections.unmodifiableMap(map);
+    }
+
+    @Override
+    public String toString() {
+        return "RatingSummary{" + "count=" + count + ", average=" + getAverage() + ", histogram=" + getHistogram() + '}';
+    }
+
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2023 bhagc
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.pm.data;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Outcome of a batch of product reports: the number of products, reports
+ * written and failed, how long the batch took and why the first
+ * {@value #MAX_FAILURES} failed products failed.
+ *
+ * @author bhagc
+ */
+public final class ReportSummary {
+
+    public static final int MAX_FAILURES = 100;
+    private final int products;
+    private final long written;
+    private final long failed;
+    private final Map<Integer, String> failures;
+    private final Duration elapsed;
+
+    ReportSummary(int products, long written, long failed, Map<Integer, String> failures, Duration elapsed) {
+        this.products = products;
+        this.written = written;
+        this.failed = failed;
+        this.failures = Collections.unmodifiableMap(new TreeMap<>(failures));
+        this.elapsed = elapsed;
+    }
+
+    public int getProducts() {
+        return products;
+    }
+
+    public long getWritten() {
+        return written;
+    }
+
+    public long getFailed() {
+        return failed;
+    }
+
+    /**
+     * @return reason of the failure by product id
+     */
+    public Map<Integer, String> getFailures() {
+        return failures;
+    }
+
+    public Duration getElapsed() {
+        return elapsed;
+    }
+
+    /**
+     * @return reports written per second
+     */
+    public double getThroughput() {
+        long nanos = Math.max(1, elapsed.toNanos());
+        return written * 1e9 / nanos;
+    }
+
+    @Override
+    public String toString() {
+        return "ReportSummary{" + "products=" + products + ", written=" + written + ", failed=" + failed
+                + ", elapsed=" + elapsed + ", throughput=" + String.format("%.0f/s", getThroughput())
+                + ", failures=" + failures + '}';
+    }
+}
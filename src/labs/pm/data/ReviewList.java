@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2023 bhagc
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.pm.data;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Reviews of a product kept in {@link Review#compareTo review order}, the
+ * highest rating first and reviews of the same rating in the order they were
+ * added, which is the order a stable sort would give.
+ * <br>
+ * Reviews are added to the bucket of their rating, so adding one takes
+ * constant time and reports read the reviews in order without sorting them.
+ * A bucket holds only the ids of the comments in a {@link CommentStore}, a
+ * review is made when it is read and its comment looked up then.
+ * <br>
+ * Not thread safe, {@code ProductManager} changes it under its write lock.
+ * A {@link #copy() copy} can be read from any thread.
+ *
+ * @author bhagc
+ */
+class ReviewList extends AbstractList<Review> {
+
+    private static final int[] NO_COMMENTS = new int[0];
+    private static final Rating[] RATINGS = Rating.values();
+    private final CommentStore comments;
+    private final int[][] buckets = new int[RATINGS.length][];
+    private final int[] counts = new int[RATINGS.length];
+    private int size;
+
+    /**
+     * @param comments store of the comments of the reviews
+     */
+    ReviewList(CommentStore comments) {
+        this.comments = comments;
+        Arrays.fill(buckets, NO_COMMENTS);
+    }
+
+    ReviewList(CommentStore comments, Collection<Review> reviews) {
+        this(comments);
+        reviews.forEach(this::add);
+    }
+
+    @Override
+    public boolean add(Review review) {
+        add(review.getRating(), comments.add(review.getComments()));
+        return true;
+    }
+
+    /**
+     * Adds a review of a comment already in the store
+     *
+     * @param rating rating of the review
+     * @param comment id of the comment
+     */
+    void add(Rating rating, int comment) {
+        int bucket = RATINGS.length - 1 - rating.ordinal();
+        if (counts[bucket] == buckets[bucket].length) {
+            buckets[bucket] = Arrays.copyOf(buckets[bucket], Math.max(2, counts[bucket] * 2));
+        }
+        buckets[bucket][counts[bucket]++] = comment;
+        size++;
+        modCount++;
+    }
+
+    @Override
+    public Review get(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException(index);
+        }
+        for (int bucket = 0; bucket < buckets.length; bucket++) {
+            if (index < counts[bucket]) {
+                return new Review(RATINGS[RATINGS.length - 1 - bucket], comments.get(buckets[bucket][index]));
+            }
+            index -= counts[bucket];
+        }
+        throw new IllegalStateException();
+    }
+
+    /**
+     * @return rating of the review at the index, without looking up its
+     * comment
+     */
+    Rating rating(int index) {
+        for (int bucket = 0; bucket < buckets.length; bucket++) {
+            if (index < counts[bucket]) {
+                return RATINGS[RATINGS.length - 1 - bucket];
+            }
+            index -= counts[bucket];
+        }
+        throw new IndexOutOfBoundsException(index);
+    }
+
+    /**
+     * @return id of the comment of the review at the index
+     */
+    int commentId(int index) {
+        for (int bucket = 0; bucket < buckets.length; bucket++) {
+            if (index < counts[bucket]) {
+                return buckets[bucket][index];
+            }
+            index -= counts[bucket];
+        }
+        throw new IndexOutOfBoundsException(index);
+    }
+
+    CommentStore comments() {
+        return comments;
+    }
+
+    @Override
+    public Review remove(int index) {
+        Review review = get(index);
+        for (int bucket = 0; bucket < buckets.length; bucket++) {
+            if (index < counts[bucket]) {
+                System.arraycopy(buckets[bucket], index + 1, buckets[bucket], index, counts[bucket] - index - 1);
+                counts[bucket]--;
+                break;
+            }
+            index -= counts[bucket];
+        }
+        size--;
+        modCount++;
+        return review;
+    }
+
+    @Override
+    public void clear() {
+        Arrays.fill(buckets, NO_COMMENTS);
+        Arrays.fill(counts, 0);
+        size = 0;
+        modCount++;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return list of the same reviews sharing the comments, which does not
+     * change with this one and looks its comments up only when read
+     */
+    ReviewList copy() {
+        ReviewList copy = new ReviewList(comments);
+        for (int bucket = 0; bucket < buckets.length; bucket++) {
+            copy.buckets[bucket] = counts[bucket] == 0 ? NO_COMMENTS
+                    : Arrays.copyOf(buckets[bucket], counts[bucket]);
+            copy.counts[bucket] = counts[bucket];
+        }
+        copy.size = size;
+        return copy;
+    }
+}
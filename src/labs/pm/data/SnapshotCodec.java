@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2023 bhagc
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package labs.pm.data;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Binary snapshot of the catalog written by {@code ProductManager.dumpData}.
+ * <br>
+ * Layout: magic, version, the review comments as written by
+ * {@link CommentStore}, each distinct comment once and most of them in their
+ * deflated blocks, and the product count, then per product its type, id,
+ * rating, price as length prefixed unscaled bytes and scale, name, best before as epoch day
+ * for a Food, and its reviews as rating and comment id, followed by a CRC32C
+ * of all of it. Strings are a length, -1 for null, and UTF-8 bytes. Products
+ * are written and read one at a time, so neither side holds an encoded copy
+ * of the catalog. Snapshots of version 3, which wrote the length of the
+ * unscaled price in one byte, are still read, older versions are not.
+ *
+ * @author bhagc
+ */
+class SnapshotCodec {
+
+    static final int MAGIC = 0x504D4431;
+    private static final int VERSION = 4;
+    private static final int BYTE_PRICE_VERSION = 3;
+    private static final Rating[] RATINGS = Rating.values();
+
+    private SnapshotCodec() {
+    }
+
+    /**
+     * @param out stream to write to, not closed
+     * @param products products and their reviews
+     * @throws IOException if the stream cannot be written
+     */
+    static void write(OutputStream out, ProductTable products) throws IOException {
+        CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(out, 1 << 16), new CRC32C());
+        DataOutputStream data = new DataOutputStream(checked);
+        data.writeInt(MAGIC);
+        data.writeInt(VERSION);
+        products.comments().write(data);
+        data.writeInt(products.size());
+        for (int slot = 0; slot < products.size(); slot++) {
+            Product product = products.product(slot);
+            data.writeByte(product instanceof Food ? 'F' : 'D');
+            data.writeInt(product.getId());
+            data.writeByte(product.getRating().ordinal());
+            byte[] unscaled = product.getPrice().unscaledValue().toByteArray();
+            data.writeInt(unscaled.length);
+            data.write(unscaled);
+            data.writeInt(product.getPrice().scale());
+            writeString(data, product.getName());
+            if (product instanceof Food) {
+                data.writeLong(product.getBestBefore().toEpochDay());
+            }
+            List<Review> reviews = products.reviews(slot);
+            data.writeInt(reviews.size());
+            if (reviews instanceof ReviewList list) {
+                for (int i = 0; i < list.size(); i++) {
+                    data.writeByte(list.rating(i).ordinal());
+                    data.writeInt(list.commentId(i));
+                }
+            }
+        }
+        data.flush();
+        data.writeInt((int) checked.getChecksum().getValue());
+        data.flush();
+    }
+
+    /**
+     * @param in stream to read from, not closed
+     * @return products and their reviews
+     * @throws IOException if the stream cannot be read or is not a complete
+     * snapshot
+     */
+    static ProductTable read(InputStream in) throws IOException {
+        CheckedInputStream checked = new CheckedInputStream(new BufferedInputStream(in, 1 << 16), new CRC32C());
+        DataInputStream data = new DataInputStream(checked);
+        if (data.readInt() != MAGIC) {
+            throw new IOException("Unknown snapshot format");
+        }
+        int version = data.readInt();
+        if (version != VERSION && version != BYTE_PRICE_VERSION) {
+            throw new IOException("Unknown snapshot version " + version);
+        }
+        CommentStore comments = CommentStore.read(data);
+        int size = data.readInt();
+        ProductTable products = new ProductTable(size, comments);
+        for (int i = 0; i < size; i++) {
+            int type = data.readByte();
+            int id = data.readInt();
+            Rating rating = rating(data.readByte());
+            int length = version == BYTE_PRICE_VERSION ? data.readUnsignedByte() : data.readInt();
+            if (length < 1) {
+                throw new IOException("Invalid price length " + length);
+            }
+            byte[] unscaled = data.readNBytes(length);
+            if (unscaled.length != length) {
+                throw new IOException("Truncated snapshot");
+            }
+            BigDecimal price = new BigDecimal(new BigInteger(unscaled), data.readInt());
+            String name = readString(data);
+            Product product = switch (type) {
+                case 'F' ->
+                    new Food(id, name, price, rating, LocalDate.ofEpochDay(data.readLong()));
+                case 'D' ->
+                    new Drink(id, name, price, rating);
+                default ->
+                    throw new IOException("Unknown product type " + type);
+            };
+            int slot = products.add(product, List.of());
+            int count = data.readInt();
+            for (int r = 0; r < count; r++) {
+                Rating review = rating(data.readByte());
+                int comment = data.readInt();
+                if (comment < CommentStore.NONE || comment >= comments.size()) {
+                    throw new IOException("Unknown comment " + comment);
+                }
+                products.addReview(slot, review, comment);
+            }
+        }
+        int expected = (int) checked.getChecksum().getValue();
+        if (data.readInt() != expected) {
+            throw new IOException("Snapshot checksum mismatch");
+        }
+        return products;
+    }
+
+    private static Rating rating(int ordinal) throws IOException {
+        if (ordinal < 0 || ordinal >= RATINGS.length) {
+            throw new IOException("Unknown rating " + ordinal);
+        }
+        return RATINGS[ordinal];
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length == -1) {
+            return null;
+        }
+        if (length < 0) {
+            throw new IOException("Invalid string length " + length);
+        }
+        byte[] bytes = in.readNBytes(length);
+        if (bytes.length != length) {
+            throw new IOException("Truncated snapshot");
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}